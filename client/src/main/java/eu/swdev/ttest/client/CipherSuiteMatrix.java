@@ -0,0 +1,117 @@
+package eu.swdev.ttest.client;
+
+import eu.swdev.ttest.DtlsSecurity;
+import eu.swdev.ttest.Handshake;
+import eu.swdev.ttest.Util;
+import org.HdrHistogram.Histogram;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.scandium.dtls.cipher.CipherSuite;
+
+import javax.net.ssl.SSLContext;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import static eu.swdev.ttest.Util.networkConfig;
+
+/**
+ * Measures every DTLS and TLS cipher suite against the server given by the system properties "host" / "remote".
+ * <p>
+ * For each combination of handshake and cipher suite a fresh connector is created and the following is reported:
+ * <ul>
+ * <li>handshake: duration of the first request minus the median duration of the following requests</li>
+ * <li>cpu per request: CPU time of the client process per small POST (request and response record), including
+ * threads that ended meanwhile and the JVM's own threads</li>
+ * <li>bulk: throughput of the long payload transfer</li>
+ * </ul>
+ * The DTLS suites are all suites Scandium knows; the server must support them too (see the system property
+ * "dtls.serverSuites" of the server). The TLS suites are the suites of the JDK matching the regular expression
+ * "tls.suites". Elliptic curves can not be configured per connector; run with the JDK's "jdk.tls.namedGroups" to
+ * compare curves for TLS.
+ */
+public class CipherSuiteMatrix {
+
+  static final int requests = Integer.getInteger("matrix.requests", 200);
+  static final int bulkRequests = Integer.getInteger("matrix.bulkRequests", 3);
+  static final Pattern tlsSuites = Pattern.compile(System.getProperty("tls.suites", ".*_ECDHE_ECDSA_.*"));
+
+  static void measure(String name, Supplier<Connector> connectorSupplier, String scheme, int port, String path) {
+    CoapEndpoint endpoint = new CoapEndpoint(connectorSupplier.get(), networkConfig);
+    try {
+      endpoint.start();
+      CoapClient client = new CoapClient(scheme, Client.host, port, path).setEndpoint(endpoint).setTimeout(10000).useCONs();
+      CoapClient longPayloadClient = new CoapClient(scheme, Client.host, port, path + "longPayload").setEndpoint(endpoint).setTimeout(180000).useCONs();
+
+      long handshakeStart = System.nanoTime();
+      CoapResponse first = client.post("0:-1", 0);
+      long firstDuration = System.nanoTime() - handshakeStart;
+      if (first == null || !first.isSuccess()) {
+        System.out.println(name + " - handshake failed");
+        return;
+      }
+
+      Histogram durations = new Histogram(5);
+      long cpuStart = Loopback.processCpuNanos();
+      for (int i = 0; i < requests; i++) {
+        long start = System.nanoTime();
+        client.post("0:-1", 0);
+        durations.recordValue((System.nanoTime() - start) / 1000);
+      }
+      long cpu = Loopback.processCpuNanos() - cpuStart;
+
+      long bytes = 0;
+      long bulkStart = System.nanoTime();
+      for (int i = 0; i < bulkRequests; i++) {
+        CoapResponse response = longPayloadClient.get();
+        if (response != null && response.getPayload() != null) {
+          bytes += response.getPayload().length;
+        }
+      }
+      double bulkSeconds = (System.nanoTime() - bulkStart) / 1e9;
+
+      long median = durations.getValueAtPercentile(50);
+      System.out.println(name +
+          " - handshake (ms): " + String.format("%.1f", (firstDuration / 1000 - median) / 1000.0) +
+          "; request p50 (us): " + median +
+          "; cpu per request (us): " + cpu / 1000 / requests +
+          "; bulk (kB/s): " + String.format("%.1f", bytes / 1024 / bulkSeconds));
+    } catch (Exception e) {
+      System.out.println(name + " - failed: " + e);
+    } finally {
+      endpoint.destroy();
+    }
+  }
+
+  static List<CipherSuite> dtlsSuites(Handshake handshake) {
+    List<CipherSuite> suites = new ArrayList<>();
+    for (CipherSuite suite : CipherSuite.values()) {
+      String keyExchange = suite.getKeyExchange().name();
+      if (keyExchange.equals("NULL")) continue;
+      if (keyExchange.contains("PSK") == (handshake == Handshake.PSK)) {
+        suites.add(suite);
+      }
+    }
+    return suites;
+  }
+
+  public static void main(String[] args) throws Exception {
+    for (DtlsSecurity security : new DtlsSecurity[]{DtlsSecurity.CLIENT_PSK, DtlsSecurity.CLIENT_RPK, DtlsSecurity.CLIENT_X509}) {
+      String path = "dtls+" + security.handshake.name().toLowerCase();
+      for (CipherSuite suite : dtlsSuites(security.handshake)) {
+        measure("dtls " + security.handshake + " " + suite,
+            () -> Util.createDtlsClientConnector(new InetSocketAddress(0), security, suite),
+            "coaps", 5684, path);
+      }
+    }
+    for (String suite : SSLContext.getDefault().getSupportedSSLParameters().getCipherSuites()) {
+      if (tlsSuites.matcher(suite).matches()) {
+        measure("tls " + suite, () -> Util.createTlsClientConnector(suite), "coaps+tcp", 5686, "tls");
+      }
+    }
+  }
+}
@@ -7,12 +7,17 @@ import org.apache.commons.lang3.RandomStringUtils;
 import org.eclipse.californium.core.CoapClient;
 import org.eclipse.californium.core.CoapResponse;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
+import org.eclipse.californium.core.coap.Request;
 import org.eclipse.californium.core.network.CoapEndpoint;
 import org.eclipse.californium.scandium.DTLSConnector;
 
+import java.io.File;
 import java.io.PushbackInputStream;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.Map;
@@ -20,8 +25,6 @@ import java.util.Set;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.BiConsumer;
 import java.util.function.Function;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 import static eu.swdev.ttest.Util.networkConfig;
 
@@ -41,8 +44,8 @@ public class Client {
     }
   }
 
-  private enum Result {
-    Null, Success, Failure, Exception;
+  enum Result {
+    Null, Success, Failure, Rejected, Exception;
   }
 
   /**
@@ -78,6 +81,12 @@ public class Client {
       checkLastAccess();
       return super.post(payload, format);
     }
+
+    @Override
+    public CoapResponse advanced(Request request) {
+      checkLastAccess();
+      return super.advanced(request);
+    }
   }
 
   //
@@ -97,14 +106,20 @@ public class Client {
     //System.out.println("text   : " + response.getResponseText());
   }
 
-  private static boolean postMorePayload = false;
+  /**
+   * Number of times a request rejected by the server's overload protection (5.03) is retried after its Max-Age.
+   */
+  static final int rejectRetries = Integer.getInteger("rejectRetries", 0);
+
+  static boolean postMorePayload = false;
+  static boolean postCONs = false;
   private static String morePayload = RandomStringUtils.randomAlphabetic(500);
 
   //
   //
   //
 
-  private enum Protocol {
+  enum Protocol {
 
     Udp("udp", path -> new CoapClient("coap", host, 5683, path)),
     DtlsPsk("dtls+psk", path -> createDtlsCoapClient(DtlsSecurity.CLIENT_PSK, path)),
@@ -117,7 +132,7 @@ public class Client {
         .setEndpoint(new CoapEndpoint(Util.createTlsClientConnector(), networkConfig))
     );
 
-    private final String path;
+    final String path;
     private final Function<String, CoapClient> coapClientSupplier;
     private CoapClient coapClient;
     private CoapClient longPayloadClient;
@@ -136,11 +151,19 @@ public class Client {
         } else {
           payload = "" + experiment + ":" + request;
         }
-        CoapResponse response = coapClient.post(payload, 0);
+        CoapResponse response = post(payload);
+        for (int retry = 0; retry < rejectRetries && isRejected(response); retry++) {
+          long maxAge = response.getOptions().getMaxAge();
+          System.out.println("post rejected (" + this + "); retry in " + maxAge + "s");
+          Thread.sleep(maxAge * 1000);
+          response = post(payload);
+        }
         if (response != null) {
           printResponse("post response (" + this + ")", response);
           if (response.getCode().codeClass == CoAP.CodeClass.SUCCESS_RESPONSE.value) {
             return Result.Success;
+          } else if (isRejected(response)) {
+            return Result.Rejected;
           } else {
             return Result.Failure;
           }
@@ -154,19 +177,47 @@ public class Client {
       }
     }
 
+    private CoapResponse post(String payload) {
+      // the message type is set per request, so it always follows the current postCONs
+      Request request = Request.newPost();
+      request.setConfirmable(postCONs);
+      request.setPayload(payload);
+      request.getOptions().setContentFormat(MediaTypeRegistry.TEXT_PLAIN);
+      return coapClient.advanced(request);
+    }
+
+    private boolean isRejected(CoapResponse response) {
+      return response != null && response.getCode() == CoAP.ResponseCode.SERVICE_UNAVAILABLE;
+    }
+
+    /**
+     * Creates an additional client for the resource of this protocol.
+     */
+    CoapClient newClient() {
+      return coapClientSupplier.apply(path).setTimeout(10000);
+    }
+
     public Integer get(int experiment) {
-      CoapResponse response = coapClient.get();
-      if (response != null) {
+      // query only the counter of the given experiment; the response does not grow with the server's history
+      Request request = Request.newGet();
+      request.setURI(coapClient.getURI() + "?exp=" + experiment);
+      request.getOptions().setAccept(MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+      CoapResponse response = coapClient.advanced(request);
+      if (response != null && response.getCode() != CoAP.ResponseCode.CONTENT) {
+        System.out.println("get failed with " + response.getCode() + " (" + this + ")");
+        return null;
+      } else if (response != null) {
         printResponse("get response (" + this + ")", response);
-        String text = response.getResponseText();
-        Pattern pattern = Pattern.compile("^" + experiment + ":(\\d+)$", Pattern.MULTILINE);
-        Matcher matcher = pattern.matcher(text);
-        if (matcher.find()) {
-          return Integer.parseInt(matcher.group(1));
-        } else {
-          System.out.println("no counter found for experiment #" + experiment + " (" + this + ")");
-          return 0;
+        ByteBuffer bb = ByteBuffer.wrap(response.getPayload());
+        while (bb.remaining() >= 8) {
+          int exp = bb.getInt();
+          int count = bb.getInt();
+          if (exp == experiment) {
+            return count;
+          }
         }
+        System.out.println("no counter found for experiment #" + experiment + " (" + this + ")");
+        return 0;
       } else {
         System.out.println("no get response received (" + this + ")");
         return null;
@@ -214,7 +265,7 @@ public class Client {
     public final void reset() {
       destroyClient(coapClient);
       destroyClient(longPayloadClient);
-      coapClient = coapClientSupplier.apply(path).setTimeout(10000).useNONs();
+      coapClient = coapClientSupplier.apply(path).setTimeout(10000);
       longPayloadClient = coapClientSupplier.apply(path + "longPayload").setTimeout(180000).useCONs();
     }
   }
@@ -375,6 +426,15 @@ public class Client {
 
   }
 
+  String readLine() throws Exception {
+    StringBuilder sb = new StringBuilder();
+    int r;
+    while ((r = keyboardInput.read()) != -1 && r != '\n') {
+      sb.append((char) r);
+    }
+    return sb.toString().trim();
+  }
+
   int cntWhitspace() {
     int cnt = 0;
     try {
@@ -393,20 +453,103 @@ public class Client {
     }
   }
 
-  void doWithWarmUp(BiConsumer<Protocol, Boolean> func) {
-    // allow to interrupt loop by hitting <return>
-    int whitespaceCnt = 0;
+  /**
+   * Detects the steady state of a protocol during warm-up. The latencies of the last two windows of warm-up requests
+   * are kept. The protocol is considered to be steady if the means and the medians of both windows differ by less
+   * than the relative tolerance.
+   */
+  static class SteadyStateDetector {
+
+    static final int window = Integer.getInteger("warmUp.window", 20);
+    static final double tolerance = Double.parseDouble(System.getProperty("warmUp.tolerance", "0.1"));
+
+    private final long[] latencies = new long[2 * window];
+    private int count = 0;
+    private boolean steady = false;
+
+    boolean isSteady() {
+      return steady;
+    }
+
+    int getCount() {
+      return count;
+    }
+
+    /**
+     * Records the latency of a warm-up request and returns true if this latency completed the steady state.
+     */
+    boolean record(long latencyNanos) {
+      latencies[count++ % latencies.length] = latencyNanos;
+      if (steady || count < latencies.length) return false;
+      // ring buffer positions of the older and the newer window
+      long[] older = new long[window];
+      long[] newer = new long[window];
+      for (int i = 0; i < window; i++) {
+        older[i] = latencies[(count + i) % latencies.length];
+        newer[i] = latencies[(count + window + i) % latencies.length];
+      }
+      steady = isClose(mean(older), mean(newer)) && isClose(median(older), median(newer));
+      return steady;
+    }
+
+    double getMeanMillis() {
+      long[] newer = new long[window];
+      for (int i = 0; i < window; i++) {
+        newer[i] = latencies[(count + window + i) % latencies.length];
+      }
+      return mean(newer) / 1000000;
+    }
+
+    private static boolean isClose(double a, double b) {
+      return Math.abs(a - b) <= tolerance * Math.max(a, b);
+    }
+
+    private static double mean(long[] values) {
+      double sum = 0;
+      for (long v : values) sum += v;
+      return sum / values.length;
+    }
+
+    private static double median(long[] values) {
+      long[] sorted = values.clone();
+      Arrays.sort(sorted);
+      return sorted[sorted.length / 2];
+    }
+  }
+
+  static final int maxAdaptiveWarmUps = Integer.getInteger("warmUp.max", 500);
+
+  boolean adaptiveWarmUp = false;
+
+  int whitespaceCnt = 0;
+
+  /**
+   * If false, loops are not interrupted by keyboard input (and System.in is not read).
+   */
+  boolean interactive = true;
+
+  // allow to interrupt loop by hitting <return>
+  boolean interrupted() {
+    if (!interactive) return false;
+    whitespaceCnt += cntWhitspace();
+    if (whitespaceCnt > 1) {
+      System.out.println("break");
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns false if the warm up was interrupted.
+   */
+  boolean fixedWarmUp(BiConsumer<Protocol, Boolean> func) {
     if (warmUpRepetitions > 0) System.out.println("begin warmup");
     for (int i = 0; i < warmUpRepetitions; i++) {
       if (i % 5 == 0) {
         System.out.println("warmups to do " + (warmUpRepetitions - i));
       }
       for (Protocol p : protocols) {
-        whitespaceCnt += cntWhitspace();
-        if (whitespaceCnt > 1) {
-          System.out.println("break");
-          return;
-        }
+        if (interrupted()) return false;
         func.accept(p, true);
       }
     }
@@ -415,16 +558,56 @@ public class Client {
     } else {
       System.out.println("start");
     }
+    return true;
+  }
+
+  /**
+   * Warms up each protocol until its latencies are steady. The number of warm-ups is capped by the warm up repetitions
+   * or, if none are set, by the system property "warmUp.max".
+   * <p>
+   * Returns false if the warm up was interrupted.
+   */
+  boolean adaptiveWarmUp(BiConsumer<Protocol, Boolean> func) {
+    int maxWarmUps = warmUpRepetitions > 0 ? warmUpRepetitions : maxAdaptiveWarmUps;
+    Map<Protocol, SteadyStateDetector> detectors = new HashMap<>();
+    for (Protocol p : protocols) {
+      detectors.put(p, new SteadyStateDetector());
+    }
+    System.out.println("begin adaptive warmup");
+    int steadyProtocols = 0;
+    for (int i = 0; i < maxWarmUps && steadyProtocols < protocols.size(); i++) {
+      for (Protocol p : protocols) {
+        SteadyStateDetector detector = detectors.get(p);
+        if (detector.isSteady()) continue;
+        if (interrupted()) return false;
+        long start = System.nanoTime();
+        func.accept(p, true);
+        if (detector.record(System.nanoTime() - start)) {
+          steadyProtocols++;
+          System.out.println("steady state (" + p + ") after " + detector.getCount() + " warmups; mean: " + detector.getMeanMillis() + "ms");
+        }
+      }
+    }
+    for (Protocol p : protocols) {
+      if (!detectors.get(p).isSteady()) {
+        System.out.println("no steady state (" + p + ") after " + detectors.get(p).getCount() + " warmups");
+      }
+    }
+    System.out.println("end warmup");
+    return true;
+  }
+
+  void doWithWarmUp(BiConsumer<Protocol, Boolean> func) {
+    whitespaceCnt = 0;
+    if (!(adaptiveWarmUp ? adaptiveWarmUp(func) : fixedWarmUp(func))) {
+      return;
+    }
     for (int i = 0; i < requestRepetitions; i++) {
       if (i % 5 == 0) {
         System.out.println("===> repetitions to do " + (requestRepetitions - i));
       }
       for (Protocol p : protocols) {
-        whitespaceCnt += cntWhitspace();
-        if (whitespaceCnt > 1) {
-          System.out.println("break");
-          return;
-        }
+        if (interrupted()) return;
         func.accept(p, false);
       }
     }
@@ -497,6 +680,30 @@ public class Client {
           }
           break;
 
+        case 'x':
+          try {
+            System.out.println("saved experiment: " + ExperimentStore.save(this));
+          } catch (Exception e) {
+            System.out.println("saving experiment failed: " + e);
+          }
+          break;
+
+        case 'c': {
+          String baseline = readLine();
+          if (baseline.isEmpty()) {
+            System.out.println("missing baseline file");
+          } else {
+            try {
+              // compare the current experiment as it would be stored
+              File current = ExperimentStore.save(this);
+              Comparison.compare(ExperimentStore.load(new File(baseline)), ExperimentStore.load(current));
+            } catch (Exception e) {
+              System.out.println("comparison failed: " + e);
+            }
+          }
+        }
+        break;
+
         case 'n':
           requestRepetitions = 0;
           requestNotWarmUpRepetitions = true;
@@ -507,6 +714,16 @@ public class Client {
           requestNotWarmUpRepetitions = false;
           break;
 
+        case 'a':
+          adaptiveWarmUp = !adaptiveWarmUp;
+          System.out.println("adaptive warmup: " + adaptiveWarmUp);
+          break;
+
+        case 'm':
+          postCONs = !postCONs;
+          System.out.println("post " + (postCONs ? "CONs" : "NONs"));
+          break;
+
         case 'l':
           System.out.println("post small payload");
           postMorePayload = false;
@@ -569,7 +786,7 @@ public class Client {
           break;
 
         case 'i':
-          System.out.println("experiment: " + experiment.number + "; protocols: " + protocols + "; requestRepetitions: " + requestRepetitions + "; warmUpRepetitions: " + warmUpRepetitions + "; postMorePayload: " + postMorePayload);
+          System.out.println("experiment: " + experiment.number + "; protocols: " + protocols + "; requestRepetitions: " + requestRepetitions + "; warmUpRepetitions: " + warmUpRepetitions + "; adaptiveWarmUp: " + adaptiveWarmUp + "; postMorePayload: " + postMorePayload + "; postCONs: " + postCONs);
           break;
 
         case 'q':
@@ -597,14 +814,19 @@ public class Client {
     System.out.println("");
     System.out.println("e: start a new experiment");
     System.out.println("n<digits*>: set number of request repetitions");
+    System.out.println("w<digits*>: set number of warmup repetitions (maximum for adaptive warmup)");
+    System.out.println("a: toggle adaptive warmup (until latencies are steady)");
     System.out.println("+<protocol>: add a protocol to selection");
     System.out.println("-<protocol>: remove a protocol from selection");
     System.out.println("#: clear protocol selection");
     System.out.println("l: post small payload");
     System.out.println("L: post more payload");
+    System.out.println("m: toggle between posting NONs and CONs (resets all selected protocols)");
     System.out.println("");
     System.out.println("s: show current post statistics");
     System.out.println("S: show current post statistics and server counts");
+    System.out.println("x: save current experiment");
+    System.out.println("c<file><return>: save current experiment and compare it with a saved baseline experiment");
     System.out.println("i: show current parameters");
     System.out.println("?: show this help message");
     System.out.println("");
@@ -0,0 +1,151 @@
+package eu.swdev.ttest.client;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramIterationValue;
+
+import java.util.TreeMap;
+
+/**
+ * Compares the successful durations of two experiments per protocol.
+ * <p>
+ * For each protocol the deltas of some percentiles are reported. A Mann-Whitney U test (normal approximation with tie
+ * correction) tells whether the two duration distributions differ significantly. A comparison fails if the median or
+ * the p95 got slower by more than "regression.threshold" percent (default 10) and the difference is significant at
+ * the level "regression.alpha" (default 0.05). It also fails if the candidate has no successful requests for a protocol
+ * the baseline has requests for, or if its share of failed requests (failures, rejections, timeouts, exceptions) grew by more than
+ * "regression.failureRate" percentage points (default 1).
+ */
+public class Comparison {
+
+  static final double threshold = Double.parseDouble(System.getProperty("regression.threshold", "10"));
+  static final double alpha = Double.parseDouble(System.getProperty("regression.alpha", "0.05"));
+  static final double failureRateThreshold = Double.parseDouble(System.getProperty("regression.failureRate", "1"));
+
+  private static final double[] percentiles = {50, 75, 90, 95, 98};
+
+  /**
+   * Returns true if no significant regression was found.
+   */
+  static boolean compare(ExperimentStore.StoredExperiment baseline, ExperimentStore.StoredExperiment candidate) {
+    System.out.println("==> Compare " + candidate.name + " with baseline " + baseline.name);
+    boolean passed = true;
+    for (String requestsKey : baseline.parameters.stringPropertyNames()) {
+      if (!requestsKey.endsWith(".requests")) continue;
+      // empty stats are also stored, e.g. after showing the statistics of a protocol that was not used
+      if (Integer.parseInt(baseline.parameters.getProperty(requestsKey)) == 0) continue;
+      // "post.<protocol>" or "longPayload.<protocol>"
+      String key = requestsKey.substring(0, requestsKey.length() - ".requests".length());
+      StringBuilder sb = new StringBuilder(key);
+      boolean keyPassed = compareFailures(key, baseline, candidate, sb) && compareDurations(key, baseline, candidate, sb);
+      sb.append(keyPassed ? "; PASS" : "; FAIL");
+      passed &= keyPassed;
+      System.out.println(sb);
+    }
+    System.out.println(passed ? "no regression" : "regression detected");
+    return passed;
+  }
+
+  /**
+   * Fails if the share of requests that did not succeed grew by more than "regression.failureRate" percentage points
+   * (default 1).
+   */
+  private static boolean compareFailures(String key, ExperimentStore.StoredExperiment baseline, ExperimentStore.StoredExperiment candidate, StringBuilder sb) {
+    String candidateRequests = candidate.parameters.getProperty(key + ".requests");
+    if (candidateRequests == null || Integer.parseInt(candidateRequests) == 0) {
+      sb.append(" - no requests in candidate");
+      return false;
+    }
+    double b = failureRate(key, baseline);
+    double c = failureRate(key, candidate);
+    sb.append(" - failures: ").append(String.format("%.1f%% -> %.1f%%", b, c));
+    return c - b <= failureRateThreshold;
+  }
+
+  private static double failureRate(String key, ExperimentStore.StoredExperiment experiment) {
+    int requests = Integer.parseInt(experiment.parameters.getProperty(key + ".requests", "0"));
+    if (requests == 0) return 0;
+    long failures = 0;
+    for (Client.Result result : Client.Result.values()) {
+      Histogram h = experiment.histograms.get(key + "." + result.name());
+      if (result != Client.Result.Success && h != null) {
+        failures += h.getTotalCount();
+      }
+    }
+    return 100.0 * failures / requests;
+  }
+
+  private static boolean compareDurations(String key, ExperimentStore.StoredExperiment baseline, ExperimentStore.StoredExperiment candidate, StringBuilder sb) {
+    Histogram b = baseline.histograms.get(key + "." + Client.Result.Success.name());
+    Histogram c = candidate.histograms.get(key + "." + Client.Result.Success.name());
+    if (b == null) {
+      sb.append("; no successful requests in baseline");
+      return true;
+    }
+    if (c == null) {
+      sb.append("; no successful requests in candidate");
+      return false;
+    }
+    sb.append("; count: ").append(b.getTotalCount()).append(" -> ").append(c.getTotalCount());
+    for (double p : percentiles) {
+      long bv = b.getValueAtPercentile(p);
+      long cv = c.getValueAtPercentile(p);
+      sb.append("; p").append((int) p).append(": ").append(bv).append(" -> ").append(cv)
+          .append(" (").append(String.format("%+.1f%%", relativeDelta(bv, cv))).append(")");
+    }
+    double pValue = mannWhitneyPValue(b, c);
+    sb.append("; p-value: ").append(String.format("%.4f", pValue));
+    boolean slower = relativeDelta(b.getValueAtPercentile(50), c.getValueAtPercentile(50)) > threshold
+        || relativeDelta(b.getValueAtPercentile(95), c.getValueAtPercentile(95)) > threshold;
+    return !(slower && pValue < alpha);
+  }
+
+  private static double relativeDelta(long baseline, long candidate) {
+    if (baseline == 0) return candidate == 0 ? 0 : 100;
+    return 100.0 * (candidate - baseline) / baseline;
+  }
+
+  /**
+   * Two-sided p-value of the Mann-Whitney U test. Equal histogram buckets are treated as ties.
+   */
+  static double mannWhitneyPValue(Histogram a, Histogram b) {
+    TreeMap<Long, long[]> counts = new TreeMap<>();
+    for (HistogramIterationValue v : a.recordedValues()) {
+      counts.computeIfAbsent(v.getValueIteratedTo(), k -> new long[2])[0] += v.getCountAtValueIteratedTo();
+    }
+    for (HistogramIterationValue v : b.recordedValues()) {
+      counts.computeIfAbsent(v.getValueIteratedTo(), k -> new long[2])[1] += v.getCountAtValueIteratedTo();
+    }
+    double n1 = a.getTotalCount();
+    double n2 = b.getTotalCount();
+    double n = n1 + n2;
+    if (n1 == 0 || n2 == 0) return 1;
+    double rank = 0;
+    double rankSum1 = 0;
+    double ties = 0;
+    for (long[] c : counts.values()) {
+      double cnt = c[0] + c[1];
+      double averageRank = rank + (cnt + 1) / 2;
+      rankSum1 += c[0] * averageRank;
+      ties += cnt * cnt * cnt - cnt;
+      rank += cnt;
+    }
+    double u = rankSum1 - n1 * (n1 + 1) / 2;
+    double mu = n1 * n2 / 2;
+    double sigma = Math.sqrt(n1 * n2 / 12 * ((n + 1) - ties / (n * (n - 1))));
+    if (sigma == 0) return 1;
+    double z = Math.abs(u - mu) / sigma;
+    return 2 * (1 - normalCdf(z));
+  }
+
+  private static double normalCdf(double z) {
+    return 0.5 * (1 + erf(z / Math.sqrt(2)));
+  }
+
+  // Abramowitz and Stegun 7.1.26
+  private static double erf(double x) {
+    double t = 1 / (1 + 0.3275911 * Math.abs(x));
+    double y = 1 - (((((1.061405429 * t - 1.453152027) * t) + 1.421413741) * t - 0.284496736) * t + 0.254829592) * t * Math.exp(-x * x);
+    return x >= 0 ? y : -y;
+  }
+
+}
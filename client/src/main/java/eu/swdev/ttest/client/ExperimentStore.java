@@ -0,0 +1,129 @@
+package eu.swdev.ttest.client;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Date;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.zip.Deflater;
+
+/**
+ * Saves experiments as property files and loads them back.
+ * <p>
+ * Besides the parameters of the experiment (protocols, payload mode, repetitions, host) the files contain the full
+ * histograms of all durations, keyed by "post.&lt;protocol&gt;.&lt;result&gt;" and
+ * "longPayload.&lt;protocol&gt;.&lt;result&gt;". Histograms are stored in the compressed HdrHistogram encoding, Base64
+ * encoded.
+ */
+public class ExperimentStore {
+
+  public static final File dir = new File(System.getProperty("experiments.dir", "experiments"));
+
+  /**
+   * An experiment as it was loaded from a file.
+   */
+  static class StoredExperiment {
+    final String name;
+    final Properties parameters = new Properties();
+    final Map<String, Histogram> histograms = new TreeMap<>();
+
+    StoredExperiment(String name) {
+      this.name = name;
+    }
+  }
+
+  static File save(Client client) throws Exception {
+    Client.Experiment experiment = client.experiment;
+    Properties props = new Properties();
+    props.setProperty("experiment", String.valueOf(experiment.number));
+    props.setProperty("timestamp", String.valueOf(System.currentTimeMillis()));
+    props.setProperty("host", Client.dnsHost + "/" + Client.host);
+    props.setProperty("protocols", String.valueOf(client.protocols));
+    props.setProperty("postMorePayload", String.valueOf(Client.postMorePayload));
+    props.setProperty("postCONs", String.valueOf(Client.postCONs));
+    props.setProperty("requestRepetitions", String.valueOf(client.requestRepetitions));
+    props.setProperty("warmUpRepetitions", String.valueOf(client.warmUpRepetitions));
+    props.setProperty("adaptiveWarmUp", String.valueOf(client.adaptiveWarmUp));
+    putStats(props, "post", experiment.stats);
+    putStats(props, "longPayload", experiment.longPayloadStats);
+
+    dir.mkdirs();
+    String timestamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+    File file = new File(dir, "experiment-" + experiment.number + "-" + timestamp + ".properties");
+    try (OutputStream out = new FileOutputStream(file)) {
+      props.store(out, "transport-test experiment #" + experiment.number);
+    }
+    return file;
+  }
+
+  private static void putStats(Properties props, String prefix, Map<Client.Protocol, Client.Stats> stats) {
+    for (Map.Entry<Client.Protocol, Client.Stats> me : stats.entrySet()) {
+      String key = prefix + "." + me.getKey().name();
+      props.setProperty(key + ".requests", String.valueOf(me.getValue().requests));
+      for (Map.Entry<Client.Result, Histogram> he : me.getValue().durations.entrySet()) {
+        props.setProperty(key + "." + he.getKey().name(), encode(he.getValue()));
+      }
+    }
+  }
+
+  static StoredExperiment load(File file) throws Exception {
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    StoredExperiment result = new StoredExperiment(file.getName());
+    for (String key : props.stringPropertyNames()) {
+      String value = props.getProperty(key);
+      if (isHistogramKey(key)) {
+        result.histograms.put(key, decode(value));
+      } else {
+        result.parameters.setProperty(key, value);
+      }
+    }
+    return result;
+  }
+
+  private static boolean isHistogramKey(String key) {
+    if (!key.startsWith("post.") && !key.startsWith("longPayload.")) return false;
+    String result = key.substring(key.lastIndexOf('.') + 1);
+    for (Client.Result r : Client.Result.values()) {
+      if (r.name().equals(result)) return true;
+    }
+    return false;
+  }
+
+  static String encode(Histogram histogram) {
+    ByteBuffer bb = ByteBuffer.allocate(histogram.getNeededByteBufferCapacity());
+    int length = histogram.encodeIntoCompressedByteBuffer(bb, Deflater.BEST_COMPRESSION);
+    return Base64.getEncoder().encodeToString(Arrays.copyOf(bb.array(), length));
+  }
+
+  private static Histogram decode(String encoded) throws Exception {
+    return Histogram.decodeFromCompressedByteBuffer(ByteBuffer.wrap(Base64.getDecoder().decode(encoded)), 0);
+  }
+
+  /**
+   * Compares two stored experiments: ExperimentStore &lt;baseline&gt; &lt;candidate&gt;
+   * <p>
+   * Exits with status 1 if the candidate shows a significant regression.
+   */
+  public static void main(String[] args) throws Exception {
+    if (args.length != 2) {
+      System.out.println("usage: ExperimentStore <baseline> <candidate>");
+      System.exit(2);
+    }
+    boolean passed = Comparison.compare(load(new File(args[0])), load(new File(args[1])));
+    System.exit(passed ? 0 : 1);
+  }
+
+}
@@ -0,0 +1,108 @@
+package eu.swdev.ttest.client;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares POSTs via the HTTP-to-CoAP gateway of the web-app with direct CoAP POSTs.
+ * <p>
+ * Usage: GatewayBenchmark [&lt;protocol&gt;...] (default: Udp DtlsPsk Tcp Tls)
+ * <p>
+ * The gateway is expected at "gateway.url" (default http://&lt;host&gt;:8080/coap-server/gateway). For each protocol
+ * "gateway.threads" (default 8) threads send "gateway.requests" (default 2000) requests each; throughput and latency
+ * are reported for both paths.
+ */
+public class GatewayBenchmark {
+
+  static final String gatewayUrl = System.getProperty("gateway.url", "http://" + Client.dnsHost + ":8080/coap-server/gateway");
+  static final int threads = Integer.getInteger("gateway.threads", 8);
+  static final int requests = Integer.getInteger("gateway.requests", 2000);
+
+  interface Sender {
+    boolean send() throws Exception;
+  }
+
+  static boolean postHttp(URL url) throws Exception {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setRequestMethod("POST");
+    connection.setDoOutput(true);
+    try (OutputStream out = connection.getOutputStream()) {
+      out.write("0:-1".getBytes(StandardCharsets.UTF_8));
+    }
+    int status = connection.getResponseCode();
+    // read the response completely so that the connection is kept alive
+    try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+      if (in != null) {
+        while (in.read() != -1) ;
+      }
+    }
+    return status < 300;
+  }
+
+  static void measure(String name, List<Sender> senders) throws Exception {
+    Histogram latencies = new ConcurrentHistogram(5);
+    AtomicInteger failures = new AtomicInteger();
+    List<Thread> workers = new ArrayList<>();
+    long start = System.nanoTime();
+    for (Sender sender : senders) {
+      Thread t = new Thread(() -> {
+        for (int i = 0; i < requests; i++) {
+          long requestStart = System.nanoTime();
+          try {
+            if (sender.send()) {
+              latencies.recordValue((System.nanoTime() - requestStart) / 1000);
+            } else {
+              failures.incrementAndGet();
+            }
+          } catch (Exception e) {
+            failures.incrementAndGet();
+          }
+        }
+      });
+      t.start();
+      workers.add(t);
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    double seconds = (System.nanoTime() - start) / 1e9;
+    System.out.println(name + " - throughput (req/s): " + String.format("%.1f", latencies.getTotalCount() / seconds) +
+        "; failures: " + failures.get() +
+        "; latency (us) p50: " + latencies.getValueAtPercentile(50) +
+        "; p90: " + latencies.getValueAtPercentile(90) +
+        "; p99: " + latencies.getValueAtPercentile(99) +
+        "; max: " + latencies.getMaxValue());
+  }
+
+  public static void main(String[] args) throws Exception {
+    String[] protocols = args.length > 0 ? args : new String[]{"Udp", "DtlsPsk", "Tcp", "Tls"};
+    for (String name : protocols) {
+      Client.Protocol protocol = Client.Protocol.valueOf(name);
+      List<Sender> direct = new ArrayList<>();
+      List<Sender> gateway = new ArrayList<>();
+      URL url = new URL(gatewayUrl + "/" + protocol.path + "/" + protocol.path);
+      for (int i = 0; i < threads; i++) {
+        CoapClient client = protocol.newClient().useCONs();
+        direct.add(() -> {
+          CoapResponse response = client.post("0:-1", 0);
+          return response != null && response.isSuccess();
+        });
+        gateway.add(() -> postHttp(url));
+      }
+      measure(protocol + " direct ", direct);
+      measure(protocol + " gateway", gateway);
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,199 @@
+package eu.swdev.ttest.client;
+
+import eu.swdev.ttest.DtlsSecurity;
+import eu.swdev.ttest.InMemoryConnector;
+import eu.swdev.ttest.Util;
+import eu.swdev.ttest.server.Server;
+import org.HdrHistogram.Histogram;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.UDPConnector;
+import org.eclipse.californium.elements.tcp.TcpServerConnector;
+
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import static eu.swdev.ttest.Util.networkConfig;
+
+/**
+ * Runs the server and the clients in one JVM in order to measure the cost of the protocol stacks alone.
+ * <p>
+ * The "Memory" and "MemoryTcp" transports connect client and server by an {@link InMemoryConnector}, i.e. they
+ * measure plain CoAP processing of the UDP and the TCP stack without any socket. DTLS and TLS can not be run without
+ * sockets (Scandium and the TLS connector own their sockets); they are measured over loopback sockets. Comparing them
+ * with the "Udp" and "Tcp" transports over loopback separates the socket cost from the security cost, and comparing
+ * those with the in-memory transports gives the socket cost itself.
+ * <p>
+ * For each transport the latency of sequential requests, the CPU time (client and server) per request, and the
+ * throughput with "loopback.threads" (default 4) concurrent clients during "loopback.seconds" (default 10) are
+ * reported.
+ */
+public class Loopback {
+
+  static final int requests = Integer.getInteger("loopback.requests", 10000);
+  static final int warmUps = Integer.getInteger("loopback.warmUps", 2000);
+  static final int threads = Integer.getInteger("loopback.threads", 4);
+  static final int seconds = Integer.getInteger("loopback.seconds", 10);
+  static final int basePort = Integer.getInteger("loopback.port", 15683);
+
+  static final InetAddress loopback = InetAddress.getLoopbackAddress();
+
+  enum Transport {
+    // the transports without sockets
+    Memory("udp", "coap", 10000),
+    MemoryTcp("tcp", "coap+tcp", 10001),
+    Udp("udp", "coap", 0),
+    DtlsPsk("dtls+psk", "coaps", 1),
+    DtlsRpk("dtls+rpk", "coaps", 1),
+    DtlsX509("dtls+x509", "coaps", 1),
+    Tcp("tcp", "coap+tcp", 2),
+    Tls("tls", "coaps+tcp", 3);
+
+    final String path;
+    final String scheme;
+    final int portOffset;
+
+    Transport(String path, String scheme, int portOffset) {
+      this.path = path;
+      this.scheme = scheme;
+      this.portOffset = portOffset;
+    }
+
+    int port() {
+      return basePort + portOffset;
+    }
+
+    Connector createClientConnector() {
+      switch (this) {
+        case Memory:
+          return new InMemoryConnector(InMemoryConnector.UDP);
+        case MemoryTcp:
+          return new InMemoryConnector(InMemoryConnector.TCP);
+        case Udp:
+          return new UDPConnector(new InetSocketAddress(loopback, 0));
+        case DtlsPsk:
+          return Util.createDtlsClientConnector(new InetSocketAddress(loopback, 0), DtlsSecurity.CLIENT_PSK);
+        case DtlsRpk:
+          return Util.createDtlsClientConnector(new InetSocketAddress(loopback, 0), DtlsSecurity.CLIENT_RPK);
+        case DtlsX509:
+          return Util.createDtlsClientConnector(new InetSocketAddress(loopback, 0), DtlsSecurity.CLIENT_X509);
+        case Tcp:
+          return Util.createTcpClientConnector();
+        default:
+          return Util.createTlsClientConnector();
+      }
+    }
+
+    CoapClient createClient(Endpoint endpoint) {
+      return new CoapClient(scheme, loopback.getHostAddress(), port(), path).setEndpoint(endpoint).setTimeout(10000).useCONs();
+    }
+  }
+
+  static Server createServer() {
+    return new Server(
+        new CoapEndpoint(new InMemoryConnector(new InetSocketAddress(loopback, Transport.Memory.port()), InMemoryConnector.UDP), networkConfig),
+        new CoapEndpoint(new InMemoryConnector(new InetSocketAddress(loopback, Transport.MemoryTcp.port()), InMemoryConnector.TCP), networkConfig),
+        new CoapEndpoint(new UDPConnector(new InetSocketAddress(loopback, Transport.Udp.port())), networkConfig),
+        new CoapEndpoint(Util.createDtlsServerConnector(new InetSocketAddress(loopback, Transport.DtlsPsk.port())), networkConfig),
+        new CoapEndpoint(new TcpServerConnector(new InetSocketAddress(loopback, Transport.Tcp.port()), 2, 10000), networkConfig),
+        new CoapEndpoint(Util.createTlsServerConnector(Transport.Tls.port()), networkConfig)
+    );
+  }
+
+  @SuppressWarnings("restriction")
+  static long processCpuNanos() {
+    return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean()).getProcessCpuTime();
+  }
+
+  static boolean post(CoapClient client) {
+    // request numbers < 0 are not recorded by the server
+    CoapResponse response = client.post("0:-1", 0);
+    return response != null && response.isSuccess();
+  }
+
+  static void measure(Transport transport) throws Exception {
+    System.out.println("==> " + transport);
+    CoapEndpoint endpoint = new CoapEndpoint(transport.createClientConnector(), networkConfig);
+    endpoint.start();
+    try {
+      CoapClient client = transport.createClient(endpoint);
+      for (int i = 0; i < warmUps; i++) {
+        post(client);
+      }
+
+      Histogram latencies = new Histogram(5);
+      int failures = 0;
+      long cpuStart = processCpuNanos();
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        long requestStart = System.nanoTime();
+        if (post(client)) {
+          latencies.recordValue((System.nanoTime() - requestStart) / 1000);
+        } else {
+          failures++;
+        }
+      }
+      long elapsed = System.nanoTime() - start;
+      long cpu = processCpuNanos() - cpuStart;
+      System.out.println("sequential - requests: " + requests + "; failures: " + failures +
+          "; latency (us) p50: " + latencies.getValueAtPercentile(50) +
+          "; p90: " + latencies.getValueAtPercentile(90) +
+          "; p99: " + latencies.getValueAtPercentile(99) +
+          "; max: " + latencies.getMaxValue() +
+          "; cpu per request (us): " + cpu / 1000 / requests +
+          "; cpu utilization: " + String.format("%.2f", (double) cpu / elapsed));
+
+      System.out.println("throughput: " + String.format("%.0f", throughput(() -> transport.createClient(endpoint))) + " requests/s");
+    } finally {
+      endpoint.destroy();
+    }
+  }
+
+  static double throughput(Supplier<CoapClient> clients) throws Exception {
+    AtomicLong completed = new AtomicLong();
+    long end = System.nanoTime() + seconds * 1000000000L;
+    List<Thread> workers = new ArrayList<>();
+    for (int i = 0; i < threads; i++) {
+      CoapClient client = clients.get();
+      Thread t = new Thread(() -> {
+        while (System.nanoTime() < end) {
+          if (post(client)) {
+            completed.incrementAndGet();
+          }
+        }
+      });
+      t.start();
+      workers.add(t);
+    }
+    for (Thread t : workers) {
+      t.join();
+    }
+    return completed.get() / (double) seconds;
+  }
+
+  public static void main(String[] args) throws Exception {
+    Server server = createServer();
+    server.start();
+    try {
+      if (args.length == 0) {
+        for (Transport transport : Transport.values()) {
+          measure(transport);
+        }
+      } else {
+        for (String arg : args) {
+          measure(Transport.valueOf(arg));
+        }
+      }
+    } finally {
+      server.destroy();
+    }
+  }
+}
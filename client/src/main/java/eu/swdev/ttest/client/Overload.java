@@ -0,0 +1,78 @@
+package eu.swdev.ttest.client;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends POST requests at a fixed rate regardless of the responses (open loop), as a burst of devices would do.
+ * <p>
+ * Usage: Overload &lt;protocol&gt; &lt;requests/s&gt; [&lt;seconds&gt;]
+ * <p>
+ * Run it at 2-3 times the capacity of a server with admission control (see the server's "admission.*" system
+ * properties) to check that the latency of the admitted requests stays bounded while the excess is rejected.
+ */
+public class Overload {
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 2) {
+      System.out.println("usage: Overload <protocol> <requests/s> [<seconds>]");
+      System.exit(2);
+    }
+    Client.Protocol protocol = Client.Protocol.valueOf(args[0]);
+    double rate = Double.parseDouble(args[1]);
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 30;
+
+    CoapClient client = protocol.newClient().useNONs();
+    Histogram success = new ConcurrentHistogram(5);
+    Histogram rejected = new ConcurrentHistogram(5);
+    AtomicInteger failures = new AtomicInteger();
+    AtomicInteger errors = new AtomicInteger();
+
+    long total = (long) (rate * seconds);
+    long start = System.nanoTime();
+    for (long i = 0; i < total; i++) {
+      long due = start + (long) (i * 1e9 / rate);
+      long wait = due - System.nanoTime();
+      if (wait > 0) {
+        Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+      }
+      long requestStart = System.nanoTime();
+      client.post(new CoapHandler() {
+        @Override
+        public void onLoad(CoapResponse response) {
+          long duration = (System.nanoTime() - requestStart) / 1000000;
+          if (response.isSuccess()) {
+            success.recordValue(duration);
+          } else if (response.getCode() == CoAP.ResponseCode.SERVICE_UNAVAILABLE) {
+            rejected.recordValue(duration);
+          } else {
+            failures.incrementAndGet();
+          }
+        }
+
+        @Override
+        public void onError() {
+          errors.incrementAndGet();
+        }
+      }, "0:-1", 0);
+    }
+    // wait for the outstanding responses
+    Thread.sleep(11000);
+
+    System.out.println("sent: " + total + "; success: " + success.getTotalCount() + "; rejected: " + rejected.getTotalCount() +
+        "; failures: " + failures.get() + "; errors/timeouts: " + errors.get());
+    System.out.println("success (ms) - p50: " + success.getValueAtPercentile(50) +
+        "; p90: " + success.getValueAtPercentile(90) +
+        "; p99: " + success.getValueAtPercentile(99) +
+        "; max: " + success.getMaxValue());
+    System.out.println("rejected (ms) - p50: " + rejected.getValueAtPercentile(50) +
+        "; p99: " + rejected.getValueAtPercentile(99));
+    System.exit(0);
+  }
+}
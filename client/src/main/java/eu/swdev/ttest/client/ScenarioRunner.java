@@ -0,0 +1,273 @@
+package eu.swdev.ttest.client;
+
+import org.HdrHistogram.Histogram;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs scenarios without user interaction and writes their results as JSON and CSV.
+ * <p>
+ * Usage: ScenarioRunner &lt;scenario file&gt;...
+ * <p>
+ * All scenarios run in the same JVM one after the other and share the protocol clients (and thereby warmed up crypto
+ * and connectors). A scenario is a properties file:
+ * <pre>
+ * name=nightly                # default: file name
+ * protocols=DtlsPsk,Tls       # see Client.Protocol
+ * operation=post              # post or getLongPayload
+ * payload=small               # small or more (posted payload)
+ * messageType=NON             # NON or CON (posts)
+ * reset=never                 # never, phase (before each phase), or request (before each request)
+ * warmUp=adaptive             # number of warm-up rounds or "adaptive"
+ * output=results              # output directory
+ * phases=ramp,steady          # default: a single phase "main"
+ * phase.ramp.repetitions=100  # rounds (one request per protocol); default: repetitions (default 100)
+ * phase.ramp.rate=10          # rounds per second, 0 (default) for as fast as possible; default: rate
+ * phase.ramp.operation=post   # default: operation
+ * </pre>
+ */
+public class ScenarioRunner {
+
+  static class Scenario {
+    final String name;
+    final Properties props;
+
+    Scenario(String name, Properties props) {
+      this.name = props.getProperty("name", name);
+      this.props = props;
+    }
+
+    String get(String key, String defaultValue) {
+      return props.getProperty(key, defaultValue).trim();
+    }
+
+    String getPhase(String phase, String key, String defaultValue) {
+      return props.getProperty("phase." + phase + "." + key, get(key, defaultValue)).trim();
+    }
+  }
+
+  static Scenario load(File file) throws Exception {
+    Properties props = new Properties();
+    try (InputStream in = new FileInputStream(file)) {
+      props.load(in);
+    }
+    String name = file.getName();
+    return new Scenario(name.endsWith(".properties") ? name.substring(0, name.length() - 11) : name, props);
+  }
+
+  final Client client = new Client();
+
+  ScenarioRunner() {
+    client.interactive = false;
+  }
+
+  void run(Scenario scenario) throws Exception {
+    System.out.println("==> scenario " + scenario.name);
+    client.protocols.clear();
+    for (String p : scenario.get("protocols", "DtlsPsk,Tls").split(",")) {
+      client.protocols.add(Client.Protocol.valueOf(p.trim()));
+    }
+    Client.postMorePayload = scenario.get("payload", "small").equals("more");
+    // applied per request, no reset needed
+    Client.postCONs = scenario.get("messageType", "NON").equals("CON");
+    String reset = scenario.get("reset", "never");
+
+    String warmUp = scenario.get("warmUp", "0");
+    BiConsumer<Client.Protocol, Boolean> warmUpFunc = operation(scenario.get("operation", "post"), reset.equals("request"));
+    if (warmUp.equals("adaptive")) {
+      client.warmUpRepetitions = 0;
+      client.adaptiveWarmUp(warmUpFunc);
+    } else {
+      client.warmUpRepetitions = Integer.parseInt(warmUp);
+      client.fixedWarmUp(warmUpFunc);
+    }
+
+    Map<String, Client.Experiment> phases = new LinkedHashMap<>();
+    for (String phase : scenario.get("phases", "main").split(",")) {
+      phase = phase.trim();
+      int repetitions = Integer.parseInt(scenario.getPhase(phase, "repetitions", "100"));
+      double rate = Double.parseDouble(scenario.getPhase(phase, "rate", "0"));
+      BiConsumer<Client.Protocol, Boolean> func = operation(scenario.getPhase(phase, "operation", "post"), reset.equals("request"));
+      if (reset.equals("phase")) {
+        for (Client.Protocol p : client.protocols) {
+          p.reset();
+        }
+      }
+      client.experiment = new Client.Experiment();
+      phases.put(phase, client.experiment);
+      System.out.println("phase " + phase + " (experiment #" + client.experiment.number + "): " + repetitions + " rounds at " + (rate > 0 ? rate + "/s" : "full speed"));
+      long start = System.nanoTime();
+      for (int i = 0; i < repetitions; i++) {
+        if (rate > 0) {
+          long wait = start + (long) (i * 1e9 / rate) - System.nanoTime();
+          if (wait > 0) {
+            Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+          }
+        }
+        for (Client.Protocol p : client.protocols) {
+          func.accept(p, false);
+        }
+      }
+    }
+    write(scenario, phases);
+  }
+
+  BiConsumer<Client.Protocol, Boolean> operation(String operation, boolean resetEachRequest) {
+    switch (operation) {
+      case "post":
+        return (protocol, warmUp) -> {
+          if (resetEachRequest) protocol.reset();
+          client.post(protocol, 1, warmUp);
+        };
+      case "getLongPayload":
+        return (protocol, warmUp) -> {
+          if (resetEachRequest) protocol.reset();
+          client.getLongPayload(protocol, 1, warmUp);
+        };
+      default:
+        throw new IllegalArgumentException("unknown operation: " + operation);
+    }
+  }
+
+  void write(Scenario scenario, Map<String, Client.Experiment> phases) throws Exception {
+    File dir = new File(scenario.get("output", "results"));
+    dir.mkdirs();
+    List<String[]> rows = new ArrayList<>();
+    StringBuilder json = new StringBuilder();
+    json.append("{\n  \"scenario\": \"").append(escape(scenario.name)).append("\",\n");
+    json.append("  \"host\": \"").append(escape(Client.dnsHost)).append("\",\n");
+    json.append("  \"parameters\": {");
+    String separator = "";
+    for (String key : scenario.props.stringPropertyNames()) {
+      json.append(separator).append("\n    \"").append(escape(key)).append("\": \"").append(escape(scenario.props.getProperty(key))).append("\"");
+      separator = ",";
+    }
+    json.append("\n  },\n  \"phases\": [");
+    separator = "";
+    for (Map.Entry<String, Client.Experiment> pe : phases.entrySet()) {
+      json.append(separator).append("\n    {\"phase\": \"").append(escape(pe.getKey())).append("\", \"results\": [");
+      separator = ",";
+      String resultSeparator = "";
+      for (Map.Entry<String, Map<Client.Protocol, Client.Stats>> oe : operations(pe.getValue()).entrySet()) {
+        for (Map.Entry<Client.Protocol, Client.Stats> se : oe.getValue().entrySet()) {
+          for (Map.Entry<Client.Result, Histogram> he : se.getValue().durations.entrySet()) {
+            Histogram h = he.getValue();
+            String[] row = {scenario.name, pe.getKey(), se.getKey().name(), oe.getKey(), he.getKey().name(),
+                String.valueOf(h.getTotalCount()), String.valueOf(h.getMinValue()), String.format(Locale.ROOT, "%.2f", h.getMean()),
+                String.valueOf(h.getValueAtPercentile(50)), String.valueOf(h.getValueAtPercentile(90)),
+                String.valueOf(h.getValueAtPercentile(95)), String.valueOf(h.getValueAtPercentile(99)),
+                String.valueOf(h.getMaxValue())};
+            rows.add(row);
+            json.append(resultSeparator).append("\n      {\"protocol\": \"").append(row[2])
+                .append("\", \"operation\": \"").append(row[3])
+                .append("\", \"result\": \"").append(row[4])
+                .append("\", \"requests\": ").append(se.getValue().requests)
+                .append(", \"count\": ").append(row[5])
+                .append(", \"min\": ").append(row[6])
+                .append(", \"mean\": ").append(row[7])
+                .append(", \"p50\": ").append(row[8])
+                .append(", \"p90\": ").append(row[9])
+                .append(", \"p95\": ").append(row[10])
+                .append(", \"p99\": ").append(row[11])
+                .append(", \"max\": ").append(row[12])
+                .append(", \"histogram\": \"").append(ExperimentStore.encode(h)).append("\"}");
+            resultSeparator = ",";
+          }
+        }
+      }
+      json.append("\n    ]}");
+    }
+    json.append("\n  ]\n}\n");
+
+    File jsonFile = new File(dir, scenario.name + ".json");
+    try (PrintWriter out = new PrintWriter(new FileWriter(jsonFile))) {
+      out.print(json);
+    }
+    File csvFile = new File(dir, scenario.name + ".csv");
+    try (PrintWriter out = new PrintWriter(new FileWriter(csvFile))) {
+      out.println("scenario,phase,protocol,operation,result,count,min,mean,p50,p90,p95,p99,max");
+      for (String[] row : rows) {
+        StringBuilder line = new StringBuilder();
+        for (String field : row) {
+          if (line.length() > 0) line.append(',');
+          line.append(csv(field));
+        }
+        out.println(line);
+      }
+    }
+    System.out.println("results: " + jsonFile + ", " + csvFile);
+  }
+
+  /**
+   * Escapes a JSON string value.
+   */
+  private static String escape(String s) {
+    StringBuilder sb = new StringBuilder(s.length());
+    for (char c : s.toCharArray()) {
+      switch (c) {
+        case '"':
+          sb.append("\\\"");
+          break;
+        case '\\':
+          sb.append("\\\\");
+          break;
+        case '\n':
+          sb.append("\\n");
+          break;
+        case '\r':
+          sb.append("\\r");
+          break;
+        case '\t':
+          sb.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            sb.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+          } else {
+            sb.append(c);
+          }
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Quotes a CSV field if needed (RFC 4180).
+   */
+  private static String csv(String field) {
+    if (field.indexOf(',') < 0 && field.indexOf('"') < 0 && field.indexOf('\n') < 0 && field.indexOf('\r') < 0) {
+      return field;
+    }
+    return '"' + field.replace("\"", "\"\"") + '"';
+  }
+
+  private static Map<String, Map<Client.Protocol, Client.Stats>> operations(Client.Experiment experiment) {
+    Map<String, Map<Client.Protocol, Client.Stats>> operations = new LinkedHashMap<>();
+    operations.put("post", experiment.stats);
+    operations.put("getLongPayload", experiment.longPayloadStats);
+    return operations;
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length == 0) {
+      System.out.println("usage: ScenarioRunner <scenario file>...");
+      System.exit(2);
+    }
+    ScenarioRunner runner = new ScenarioRunner();
+    for (String arg : args) {
+      runner.run(load(new File(arg)));
+    }
+    System.exit(0);
+  }
+}
@@ -0,0 +1,137 @@
+package eu.swdev.ttest.client;
+
+import eu.swdev.ttest.LossyConnector;
+import eu.swdev.ttest.Util;
+import eu.swdev.ttest.server.Server;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.elements.UDPConnector;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static eu.swdev.ttest.Util.networkConfig;
+
+/**
+ * Compares message types (CON/NON) and congestion control algorithms over UDP.
+ * <p>
+ * A server is started in this JVM on the loopback interface. For each combination of message type, congestion
+ * control algorithm ("matrix.algorithms", "none" for no congestion control), ACK timeout ("matrix.ackTimeouts"),
+ * NSTART ("matrix.nstarts"), and link loss ("matrix.losses", both directions, with an additional delay of
+ * "matrix.delay" ms) "matrix.requests" POSTs are sent with up to "matrix.concurrency" outstanding requests. Throughput,
+ * loss (requests without response within "matrix.timeout" ms), and latency are reported.
+ */
+public class TransmissionMatrix {
+
+  static final int requests = Integer.getInteger("matrix.requests", 2000);
+  static final int concurrency = Integer.getInteger("matrix.concurrency", 8);
+  static final int timeout = Integer.getInteger("matrix.timeout", 30000);
+  static final int delay = Integer.getInteger("matrix.delay", 0);
+  static final String[] algorithms = System.getProperty("matrix.algorithms", "none,BasicRto,Cocoa,CocoaStrong,LinuxRto,PeakhopperRto").split(",");
+  static final String[] ackTimeouts = System.getProperty("matrix.ackTimeouts", "2000").split(",");
+  static final String[] nstarts = System.getProperty("matrix.nstarts", "1").split(",");
+  static final String[] losses = System.getProperty("matrix.losses", "0,0.1").split(",");
+
+  static final InetSocketAddress serverAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.getInteger("matrix.port", 15783));
+
+  static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    // must not keep the JVM alive, e.g. if the server can not be created
+    Thread t = new Thread(r, "request-timer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static void measure(boolean confirmable, String algorithm, int ackTimeout, int nstart, double loss) throws Exception {
+    NetworkConfig config = Util.createNetworkConfig("none".equals(algorithm) ? null : algorithm, ackTimeout, nstart);
+    LossyConnector connector = new LossyConnector(new UDPConnector(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)), loss, delay);
+    CoapEndpoint endpoint = new CoapEndpoint(connector, config);
+    endpoint.start();
+    try {
+      CoapClient client = new CoapClient("coap", serverAddress.getAddress().getHostAddress(), serverAddress.getPort(), "udp").setEndpoint(endpoint);
+      Semaphore window = new Semaphore(concurrency);
+      Histogram latencies = new ConcurrentHistogram(5);
+      AtomicInteger lost = new AtomicInteger();
+
+      long start = System.nanoTime();
+      for (int i = 0; i < requests; i++) {
+        window.acquire();
+        Request request = Request.newPost();
+        request.setConfirmable(confirmable);
+        request.setPayload("0:-1");
+        AtomicBoolean done = new AtomicBoolean();
+        long requestStart = System.nanoTime();
+        timer.schedule(() -> {
+          if (done.compareAndSet(false, true)) {
+            lost.incrementAndGet();
+            request.cancel();
+            window.release();
+          }
+        }, timeout, TimeUnit.MILLISECONDS);
+        client.advanced(new CoapHandler() {
+          @Override
+          public void onLoad(CoapResponse response) {
+            if (done.compareAndSet(false, true)) {
+              latencies.recordValue((System.nanoTime() - requestStart) / 1000000);
+              window.release();
+            }
+          }
+
+          @Override
+          public void onError() {
+            if (done.compareAndSet(false, true)) {
+              lost.incrementAndGet();
+              window.release();
+            }
+          }
+        }, request);
+      }
+      // wait for all outstanding requests
+      window.acquire(concurrency);
+      double seconds = (System.nanoTime() - start) / 1e9;
+
+      System.out.println((confirmable ? "CON" : "NON") +
+          "; cc: " + algorithm + "; ackTimeout: " + ackTimeout + "; nstart: " + nstart + "; link loss: " + loss +
+          " - throughput (req/s): " + String.format("%.1f", latencies.getTotalCount() / seconds) +
+          "; loss: " + String.format("%.2f%%", 100.0 * lost.get() / requests) +
+          "; latency (ms) p50: " + latencies.getValueAtPercentile(50) +
+          "; p95: " + latencies.getValueAtPercentile(95) +
+          "; p99: " + latencies.getValueAtPercentile(99) +
+          "; max: " + latencies.getMaxValue());
+    } finally {
+      endpoint.destroy();
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    Server server = new Server(new CoapEndpoint(new UDPConnector(serverAddress), networkConfig));
+    server.start();
+    try {
+      for (String loss : losses) {
+        for (boolean confirmable : new boolean[]{true, false}) {
+          for (String algorithm : algorithms) {
+            for (String ackTimeout : ackTimeouts) {
+              for (String nstart : nstarts) {
+                measure(confirmable, algorithm.trim(), Integer.parseInt(ackTimeout.trim()), Integer.parseInt(nstart.trim()), Double.parseDouble(loss.trim()));
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      server.destroy();
+      timer.shutdown();
+    }
+  }
+}
@@ -0,0 +1,74 @@
+package eu.swdev.ttest;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.security.SecureRandom;
+
+/**
+ * SSL context that restricts the cipher suites of the SSL engines created by an initialized SSL context.
+ * <p>
+ * The TCP connectors only use {@link SSLContext#createSSLEngine} and offer no way to configure the cipher suites.
+ */
+public class CipherSuiteSslContext extends SSLContext {
+
+  public CipherSuiteSslContext(SSLContext delegate, String... cipherSuites) {
+    super(new Spi(delegate, cipherSuites), delegate.getProvider(), delegate.getProtocol());
+  }
+
+  private static class Spi extends SSLContextSpi {
+
+    private final SSLContext delegate;
+    private final String[] cipherSuites;
+
+    Spi(SSLContext delegate, String[] cipherSuites) {
+      this.delegate = delegate;
+      this.cipherSuites = cipherSuites;
+    }
+
+    private SSLEngine restrict(SSLEngine engine) {
+      engine.setEnabledCipherSuites(cipherSuites);
+      return engine;
+    }
+
+    @Override
+    protected void engineInit(KeyManager[] km, TrustManager[] tm, SecureRandom sr) {
+      // the delegate is already initialized
+    }
+
+    @Override
+    protected SSLSocketFactory engineGetSocketFactory() {
+      return delegate.getSocketFactory();
+    }
+
+    @Override
+    protected SSLServerSocketFactory engineGetServerSocketFactory() {
+      return delegate.getServerSocketFactory();
+    }
+
+    @Override
+    protected SSLEngine engineCreateSSLEngine() {
+      return restrict(delegate.createSSLEngine());
+    }
+
+    @Override
+    protected SSLEngine engineCreateSSLEngine(String host, int port) {
+      return restrict(delegate.createSSLEngine(host, port));
+    }
+
+    @Override
+    protected SSLSessionContext engineGetServerSessionContext() {
+      return delegate.getServerSessionContext();
+    }
+
+    @Override
+    protected SSLSessionContext engineGetClientSessionContext() {
+      return delegate.getClientSessionContext();
+    }
+  }
+}
@@ -0,0 +1,159 @@
+package eu.swdev.ttest;
+
+import org.eclipse.californium.elements.AddressEndpointContext;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.EndpointContext;
+import org.eclipse.californium.elements.EndpointContextMatcher;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+import org.eclipse.californium.elements.TcpEndpointContext;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connector that exchanges messages with other in-memory connectors of the same JVM without any socket.
+ * <p>
+ * Connectors are addressed by (virtual) socket addresses. Each connector delivers its received messages in order on
+ * its own thread. The protocol ("UDP" or "TCP") selects the stack of the endpoint using the connector:
+ * <ul>
+ * <li>UDP: a message sent to an address without a started UDP connector is dropped like a datagram.</li>
+ * <li>TCP: every message is one CoAP over TCP frame, so no stream reassembly is needed. Two connectors form one
+ * virtual connection, identified by their addresses in the endpoint context. Sending to an address without a started
+ * TCP connector fails like a refused connection.</li>
+ * </ul>
+ */
+public class InMemoryConnector implements Connector {
+
+  public static final String UDP = "UDP";
+  public static final String TCP = "TCP";
+
+  private static final Map<InetSocketAddress, InMemoryConnector> connectors = new ConcurrentHashMap<>();
+  private static final AtomicInteger nextPort = new AtomicInteger(40000);
+
+  private final InetSocketAddress address;
+  private final String protocol;
+  private volatile RawDataChannel receiver;
+  private volatile ExecutorService executor;
+  private volatile EndpointContextMatcher matcher;
+
+  public InMemoryConnector(InetSocketAddress address, String protocol) {
+    this.address = address;
+    this.protocol = protocol;
+  }
+
+  public InMemoryConnector(InetSocketAddress address) {
+    this(address, UDP);
+  }
+
+  /**
+   * Creates a connector with a new unique loopback address.
+   */
+  public InMemoryConnector(String protocol) {
+    this(new InetSocketAddress(InetAddress.getLoopbackAddress(), nextPort.getAndIncrement()), protocol);
+  }
+
+  public InMemoryConnector() {
+    this(UDP);
+  }
+
+  @Override
+  public synchronized void start() throws IOException {
+    if (executor != null) return;
+    if (connectors.putIfAbsent(address, this) != null) {
+      throw new IOException("address already in use: " + address);
+    }
+    executor = Executors.newSingleThreadExecutor(r -> {
+      Thread t = new Thread(r, "in-memory-" + address);
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor == null) return;
+    connectors.remove(address, this);
+    executor.shutdown();
+    executor = null;
+  }
+
+  @Override
+  public void destroy() {
+    stop();
+  }
+
+  @Override
+  public void send(RawData msg) {
+    InetSocketAddress destination = msg.getInetSocketAddress();
+    InMemoryConnector peer = connectors.get(destination);
+    if (peer != null && !protocol.equals(peer.protocol)) {
+      peer = null;
+    }
+    EndpointContext context = createContext(destination);
+    if (TCP.equals(protocol)) {
+      EndpointContextMatcher matcher = this.matcher;
+      if (peer == null) {
+        msg.onError(new IOException("connection refused: " + destination));
+        return;
+      }
+      if (matcher != null && !matcher.isToBeSent(msg.getEndpointContext(), context)) {
+        msg.onError(new IOException("connection changed: " + destination));
+        return;
+      }
+    }
+    msg.onContextEstablished(context);
+    if (peer != null) {
+      peer.receive(msg.getBytes().clone(), address);
+    }
+    msg.onSent();
+  }
+
+  /**
+   * Creates the context of the (virtual) connection between this connector and the peer.
+   */
+  private EndpointContext createContext(InetSocketAddress peer) {
+    if (TCP.equals(protocol)) {
+      // the same id on both sides (without host names, which depend on how the address was created)
+      String local = address.getAddress().getHostAddress() + ":" + address.getPort();
+      String remote = peer.getAddress().getHostAddress() + ":" + peer.getPort();
+      return new TcpEndpointContext(peer, local.compareTo(remote) < 0 ? local + "-" + remote : remote + "-" + local);
+    }
+    return new AddressEndpointContext(peer);
+  }
+
+  private void receive(byte[] data, InetSocketAddress source) {
+    ExecutorService executor = this.executor;
+    RawDataChannel receiver = this.receiver;
+    if (executor != null && receiver != null) {
+      executor.execute(() -> receiver.receiveData(RawData.inbound(data, createContext(source), false)));
+    }
+  }
+
+  @Override
+  public void setRawDataReceiver(RawDataChannel messageHandler) {
+    this.receiver = messageHandler;
+  }
+
+  @Override
+  public void setEndpointContextMatcher(EndpointContextMatcher matcher) {
+    // only used for TCP: UDP messages are not secured -> address matching done by the endpoint is sufficient
+    this.matcher = matcher;
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    return address;
+  }
+
+  @Override
+  public String getProtocol() {
+    return protocol;
+  }
+}
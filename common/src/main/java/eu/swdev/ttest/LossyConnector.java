@@ -0,0 +1,98 @@
+package eu.swdev.ttest;
+
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.EndpointContextMatcher;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connector that impairs the link of another connector: each outgoing and each incoming message is dropped with the
+ * given probability and the surviving messages are delayed by the given time (in both directions).
+ */
+public class LossyConnector implements Connector {
+
+  private final Connector delegate;
+  private final double loss;
+  private final long delayMillis;
+  private final Random random = new Random();
+  private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "lossy-link");
+    t.setDaemon(true);
+    return t;
+  });
+
+  public LossyConnector(Connector delegate, double loss, long delayMillis) {
+    this.delegate = delegate;
+    this.loss = loss;
+    this.delayMillis = delayMillis;
+  }
+
+  private synchronized boolean drop() {
+    return random.nextDouble() < loss;
+  }
+
+  private void delayed(Runnable runnable) {
+    if (delayMillis > 0) {
+      scheduler.schedule(runnable, delayMillis, TimeUnit.MILLISECONDS);
+    } else {
+      runnable.run();
+    }
+  }
+
+  @Override
+  public void start() throws IOException {
+    delegate.start();
+  }
+
+  @Override
+  public void stop() {
+    delegate.stop();
+  }
+
+  @Override
+  public void destroy() {
+    delegate.destroy();
+    scheduler.shutdownNow();
+  }
+
+  @Override
+  public void send(RawData msg) {
+    if (drop()) {
+      // looks like a sent message to the endpoint
+      msg.onSent();
+    } else {
+      delayed(() -> delegate.send(msg));
+    }
+  }
+
+  @Override
+  public void setRawDataReceiver(RawDataChannel messageHandler) {
+    delegate.setRawDataReceiver(raw -> {
+      if (!drop()) {
+        delayed(() -> messageHandler.receiveData(raw));
+      }
+    });
+  }
+
+  @Override
+  public void setEndpointContextMatcher(EndpointContextMatcher matcher) {
+    delegate.setEndpointContextMatcher(matcher);
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    return delegate.getAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return delegate.getProtocol();
+  }
+}
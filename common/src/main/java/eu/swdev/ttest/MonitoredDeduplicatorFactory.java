@@ -0,0 +1,104 @@
+package eu.swdev.ttest;
+
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+import org.eclipse.californium.core.network.deduplication.DeduplicatorFactory;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Deduplicator factory that creates the deduplicator selected by the system property "deduplicator" and keeps track
+ * of the size and the churn of its deduplicators while they are started.
+ * <p>
+ * "TIME_BUCKETS" selects the {@link TimeBucketDeduplicator}; otherwise Californium's deduplicator given by the
+ * network configuration (DEDUPLICATOR) is used. Californium's deduplicators do not expose their size, it is only
+ * reported for the {@link TimeBucketDeduplicator}.
+ */
+public class MonitoredDeduplicatorFactory extends DeduplicatorFactory {
+
+  public static final String TIME_BUCKETS = "TIME_BUCKETS";
+
+  private final List<MonitoredDeduplicator> deduplicators = new CopyOnWriteArrayList<>();
+
+  @Override
+  public Deduplicator createDeduplicator(NetworkConfig config) {
+    Deduplicator deduplicator = TIME_BUCKETS.equals(System.getProperty("deduplicator"))
+        ? new TimeBucketDeduplicator(config)
+        : super.createDeduplicator(config);
+    return new MonitoredDeduplicator(deduplicator);
+  }
+
+  /**
+   * Returns the size of each deduplicator and the number of exchanges added since the last report.
+   */
+  public String report() {
+    StringBuilder sb = new StringBuilder();
+    long total = 0;
+    for (MonitoredDeduplicator d : deduplicators) {
+      sb.append(d.delegate.getClass().getSimpleName()).append(" - size: ");
+      if (d.delegate instanceof TimeBucketDeduplicator) {
+        int size = ((TimeBucketDeduplicator) d.delegate).size();
+        total += size;
+        sb.append(size);
+      } else {
+        sb.append("n/a");
+      }
+      sb.append("; added: ").append(d.added.getAndSet(0)).append('\n');
+    }
+    sb.append("total size: ").append(total).append('\n');
+    return sb.toString();
+  }
+
+  class MonitoredDeduplicator implements Deduplicator {
+
+    final Deduplicator delegate;
+    final AtomicLong added = new AtomicLong();
+
+    MonitoredDeduplicator(Deduplicator delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void start() {
+      delegate.start();
+      if (!deduplicators.contains(this)) {
+        deduplicators.add(this);
+      }
+    }
+
+    @Override
+    public void stop() {
+      delegate.stop();
+      // do not keep stopped (destroyed) endpoints reachable
+      deduplicators.remove(this);
+    }
+
+    @Override
+    public Exchange findPrevious(KeyMID key, Exchange exchange) {
+      Exchange previous = delegate.findPrevious(key, exchange);
+      if (previous == null) {
+        added.incrementAndGet();
+      }
+      return previous;
+    }
+
+    @Override
+    public Exchange find(KeyMID key) {
+      return delegate.find(key);
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return delegate.isEmpty();
+    }
+
+    @Override
+    public void clear() {
+      delegate.clear();
+    }
+  }
+}
@@ -0,0 +1,134 @@
+package eu.swdev.ttest;
+
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+import org.eclipse.californium.elements.util.DaemonThreadFactory;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deduplicator that expires exchanges by time buckets instead of visiting every entry.
+ * <p>
+ * All exchanges are kept in a single map, i.e. a lookup is one probe and {@link #findPrevious} is one atomic
+ * putIfAbsent. In addition each new exchange is appended to the current bucket, a plain array of keys and exchanges
+ * that replaces the per-entry wrapper and timestamp of mark-and-sweep. The buckets form a ring that advances every
+ * EXCHANGE_LIFETIME / (buckets - 1); the bucket that becomes current again is expired by removing exactly its entries
+ * from the map, so the expiry cost is proportional to the expired exchanges, not to the store size. Exchanges are
+ * kept between EXCHANGE_LIFETIME and EXCHANGE_LIFETIME * buckets / (buckets - 1). The number of buckets is given by the
+ * system property "deduplicator.buckets" (default 32).
+ */
+public class TimeBucketDeduplicator implements Deduplicator {
+
+  private final ConcurrentHashMap<KeyMID, Exchange> exchanges = new ConcurrentHashMap<>();
+  private final Bucket[] ring;
+  private final long period;
+  private volatile int current = 0;
+  private ScheduledExecutorService executor;
+
+  public TimeBucketDeduplicator(NetworkConfig config) {
+    int buckets = Math.max(2, Integer.getInteger("deduplicator.buckets", 32));
+    this.period = Math.max(1, config.getLong(NetworkConfig.Keys.EXCHANGE_LIFETIME) / (buckets - 1));
+    this.ring = new Bucket[buckets];
+    for (int i = 0; i < buckets; i++) {
+      ring[i] = new Bucket();
+    }
+  }
+
+  /**
+   * Keys and exchanges added during one period, stored alternately.
+   */
+  private static class Bucket {
+
+    private static final int INITIAL_CAPACITY = 64;
+
+    private Object[] entries = new Object[INITIAL_CAPACITY];
+    private int used;
+
+    synchronized void add(KeyMID key, Exchange exchange) {
+      if (used == entries.length) {
+        entries = Arrays.copyOf(entries, used * 2);
+      }
+      entries[used++] = key;
+      entries[used++] = exchange;
+    }
+
+    /**
+     * Removes the entries of this bucket from the map unless the key was added again in the meantime.
+     */
+    synchronized void expire(ConcurrentHashMap<KeyMID, Exchange> exchanges) {
+      for (int i = 0; i < used; i += 2) {
+        exchanges.remove(entries[i], entries[i + 1]);
+      }
+      if (used < entries.length / 4) {
+        // the rate went down, give back memory
+        entries = new Object[Math.max(INITIAL_CAPACITY, entries.length / 2)];
+      } else {
+        Arrays.fill(entries, 0, used, null);
+      }
+      used = 0;
+    }
+  }
+
+  private void rotate() {
+    int next = (current + 1) % ring.length;
+    ring[next].expire(exchanges);
+    current = next;
+  }
+
+  @Override
+  public synchronized void start() {
+    if (executor == null) {
+      executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("Deduplicator"));
+      executor.scheduleAtFixedRate(this::rotate, period, period, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (executor != null) {
+      executor.shutdown();
+      executor = null;
+    }
+  }
+
+  @Override
+  public Exchange findPrevious(KeyMID key, Exchange exchange) {
+    Exchange previous = exchanges.putIfAbsent(key, exchange);
+    if (previous == null) {
+      // a rotation in between only moves the exchange to the next bucket, i.e. it is kept one period longer
+      ring[current].add(key, exchange);
+    }
+    return previous;
+  }
+
+  @Override
+  public Exchange find(KeyMID key) {
+    return exchanges.get(key);
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return exchanges.isEmpty();
+  }
+
+  /**
+   * Returns the number of exchanges in this deduplicator.
+   */
+  public int size() {
+    return exchanges.size();
+  }
+
+  @Override
+  public void clear() {
+    for (Bucket bucket : ring) {
+      bucket.expire(exchanges);
+    }
+    exchanges.clear();
+  }
+}
@@ -24,10 +24,90 @@ public class Util {
   private static final String TRUST_STORE_PASSWORD = "rootPass";
   private static final String TRUST_STORE_LOCATION = "certs/trustStore.jks";
 
-  public static NetworkConfig networkConfig = NetworkConfig
-      .createStandardWithoutFile()
-      .setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 500000)
-      .setInt(NetworkConfig.Keys.BLOCKWISE_STATUS_LIFETIME, 5 * 60 * 1000);
+  public static NetworkConfig networkConfig = createNetworkConfig();
+
+  /**
+   * Creates the network configuration used by all endpoints of the transport test.
+   */
+  public static NetworkConfig createNetworkConfig() {
+    return withExchangeTuning(NetworkConfig
+        .createStandardWithoutFile()
+        .setInt(NetworkConfig.Keys.MAX_RESOURCE_BODY_SIZE, 500000)
+        .setInt(NetworkConfig.Keys.BLOCKWISE_STATUS_LIFETIME, 5 * 60 * 1000));
+  }
+
+  /**
+   * Applies the exchange lifetime and deduplication settings given by the system properties "exchangeLifetime",
+   * "nonLifetime", "markAndSweepInterval", "cropRotationPeriod" (all ms), and "deduplicator"
+   * (DEDUPLICATOR_MARK_AND_SWEEP, DEDUPLICATOR_CROP_ROTATION, or NO_DEDUPLICATOR).
+   */
+  public static NetworkConfig withExchangeTuning(NetworkConfig config) {
+    setLong(config, NetworkConfig.Keys.EXCHANGE_LIFETIME, "exchangeLifetime");
+    setLong(config, NetworkConfig.Keys.NON_LIFETIME, "nonLifetime");
+    setLong(config, NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL, "markAndSweepInterval");
+    setLong(config, NetworkConfig.Keys.CROP_ROTATION_PERIOD, "cropRotationPeriod");
+    String deduplicator = System.getProperty("deduplicator");
+    if (deduplicator != null && !deduplicator.equals(MonitoredDeduplicatorFactory.TIME_BUCKETS)) {
+      config.setString(NetworkConfig.Keys.DEDUPLICATOR, deduplicator);
+    }
+    return config;
+  }
+
+  private static void setLong(NetworkConfig config, String key, String property) {
+    Long value = Long.getLong(property);
+    if (value != null) {
+      config.setLong(key, value);
+    }
+  }
+
+  /**
+   * Creates a network configuration like {@link #createNetworkConfig()} with the given congestion control and transmission
+   * parameters.
+   *
+   * @param congestionControl name of one of Californium's congestion control algorithms (e.g. "Cocoa",
+   *                          "CocoaStrong", "BasicRto", "LinuxRto", "PeakhopperRto") or null for none
+   */
+  public static NetworkConfig createNetworkConfig(String congestionControl, int ackTimeout, int nstart) {
+    NetworkConfig config = createNetworkConfig()
+        .setInt(NetworkConfig.Keys.ACK_TIMEOUT, ackTimeout)
+        .setInt(NetworkConfig.Keys.NSTART, nstart)
+        .setBoolean(NetworkConfig.Keys.USE_CONGESTION_CONTROL, congestionControl != null);
+    if (congestionControl != null) {
+      config.setString(NetworkConfig.Keys.CONGESTION_CONTROL_ALGORITHM, congestionControl);
+    }
+    return config;
+  }
+
+  private static KeyStore keyStore;
+  private static KeyStore trustStore;
+
+  private static KeyStore loadKeyStore(String location, String password) throws Exception {
+    KeyStore ks = KeyStore.getInstance("JKS");
+    try (InputStream in = Util.class.getClassLoader().getResourceAsStream(location)) {
+      ks.load(in, password.toCharArray());
+    }
+    return ks;
+  }
+
+  /**
+   * The key store is loaded once and shared by all connectors.
+   */
+  private static synchronized KeyStore getKeyStore() throws Exception {
+    if (keyStore == null) {
+      keyStore = loadKeyStore(KEY_STORE_LOCATION, KEY_STORE_PASSWORD);
+    }
+    return keyStore;
+  }
+
+  /**
+   * The trust store is loaded once and shared by all connectors.
+   */
+  private static synchronized KeyStore getTrustStore() throws Exception {
+    if (trustStore == null) {
+      trustStore = loadKeyStore(TRUST_STORE_LOCATION, TRUST_STORE_PASSWORD);
+    }
+    return trustStore;
+  }
 
   public static DTLSConnector createDtlsServerConnector(InetSocketAddress addr) {
     DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
@@ -39,25 +119,24 @@ public class Util {
 
       builder.setPskStore(pskStore);
 
-      InputStream in = null;
-      // load the key store
-      KeyStore keyStore = KeyStore.getInstance("JKS");
-      in = Util.class.getClassLoader().getResourceAsStream(KEY_STORE_LOCATION);
-      keyStore.load(in, KEY_STORE_PASSWORD.toCharArray());
-      in.close();
-
-      // load the trust store
-      KeyStore trustStore = KeyStore.getInstance("JKS");
-      InputStream inTrust = Util.class.getClassLoader().getResourceAsStream(TRUST_STORE_LOCATION);
-      trustStore.load(inTrust, TRUST_STORE_PASSWORD.toCharArray());
-      inTrust.close();
+      KeyStore keyStore = getKeyStore();
 
       // You can load multiple certificates if needed
       Certificate[] trustedCertificates = new Certificate[1];
-      trustedCertificates[0] = trustStore.getCertificate("root");
+      trustedCertificates[0] = getTrustStore().getCertificate("root");
       builder.setIdentity((PrivateKey) keyStore.getKey("server", KEY_STORE_PASSWORD.toCharArray()),
           keyStore.getCertificateChain("server"), true);
       builder.setTrustStore(trustedCertificates);
+      // Scandium answers a ClientHello without a valid cookie statelessly; limit the connections that pass the cookie
+      // exchange
+      Integer maxConnections = Integer.getInteger("dtls.maxConnections");
+      if (maxConnections != null) {
+        builder.setMaxConnections(maxConnections);
+      }
+      CipherSuite[] cipherSuites = getDtlsServerCipherSuites();
+      if (cipherSuites != null) {
+        builder.setSupportedCipherSuites(cipherSuites);
+      }
       return new DTLSConnector(builder.build());
     } catch (Exception e) {
       throw new RuntimeException(e);
@@ -65,32 +144,44 @@ public class Util {
 
   }
 
+  /**
+   * Cipher suites of the DTLS server connector given by the system property "dtls.serverSuites" (comma separated
+   * names); if not set, Scandium's defaults for the configured credentials are used.
+   */
+  private static CipherSuite[] getDtlsServerCipherSuites() {
+    String names = System.getProperty("dtls.serverSuites");
+    if (names == null) return null;
+    String[] split = names.split(",");
+    CipherSuite[] suites = new CipherSuite[split.length];
+    for (int i = 0; i < split.length; i++) {
+      suites[i] = CipherSuite.valueOf(split[i].trim());
+    }
+    return suites;
+  }
+
   public static DTLSConnector createDtlsClientConnector(InetSocketAddress addr, DtlsSecurity security) {
+    if (security.handshake != Handshake.PSK) {
+      return createDtlsClientConnector(addr, security, CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256);
+    } else {
+      return createDtlsClientConnector(addr, security, CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA256);
+    }
+  }
+
+  public static DTLSConnector createDtlsClientConnector(InetSocketAddress addr, DtlsSecurity security, CipherSuite... cipherSuites) {
     DtlsConnectorConfig.Builder builder = new DtlsConnectorConfig.Builder();
     builder.setAddress(addr);
     try {
       if (security.handshake != Handshake.PSK) {
 
-        InputStream in = null;
-        // load the key store
-        KeyStore keyStore = KeyStore.getInstance("JKS");
-        in = Util.class.getClassLoader().getResourceAsStream(KEY_STORE_LOCATION);
-        keyStore.load(in, KEY_STORE_PASSWORD.toCharArray());
-        in.close();
-
-        // load the trust store
-        KeyStore trustStore = KeyStore.getInstance("JKS");
-        InputStream inTrust = Util.class.getClassLoader().getResourceAsStream(TRUST_STORE_LOCATION);
-        trustStore.load(inTrust, TRUST_STORE_PASSWORD.toCharArray());
-        inTrust.close();
+        KeyStore keyStore = getKeyStore();
 
         // You can load multiple certificates if needed
         Certificate[] trustedCertificates = new Certificate[1];
-        trustedCertificates[0] = trustStore.getCertificate("root");
+        trustedCertificates[0] = getTrustStore().getCertificate("root");
         builder.setIdentity((PrivateKey) keyStore.getKey(security.alias, KEY_STORE_PASSWORD.toCharArray()),
             keyStore.getCertificateChain(security.alias), security.handshake == Handshake.RPK);
         builder.setTrustStore(trustedCertificates);
-        builder.setSupportedCipherSuites(new CipherSuite[]{CipherSuite.TLS_ECDHE_ECDSA_WITH_AES_128_CBC_SHA256});
+        builder.setSupportedCipherSuites(cipherSuites);
 
       } else {
 
@@ -104,7 +195,7 @@ public class Util {
         pskStore.setKey("Client_identity", "secretPSK".getBytes());
 
         builder.setPskStore(pskStore);
-        builder.setSupportedCipherSuites(new CipherSuite[]{CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA256});
+        builder.setSupportedCipherSuites(cipherSuites);
 
       }
       return new DTLSConnector(builder.build());
@@ -147,6 +238,14 @@ public class Util {
     return new TlsClientConnector(sslContext, 2, 5000, 10000);
   }
 
+  /**
+   * Creates a TLS client connector that only enables the given cipher suites.
+   */
+  public static TlsClientConnector createTlsClientConnector(String... cipherSuites) {
+    SSLContext sslContext = new CipherSuiteSslContext(createSslContext("client"), cipherSuites);
+    return new TlsClientConnector(sslContext, 2, 5000, 10000);
+  }
+
   public static TlsServerConnector createTlsServerConnector(int port) {
     SSLContext sslContext = createSslContext("server");
     return new TlsServerConnector(sslContext, new InetSocketAddress(port), 1, 5000);
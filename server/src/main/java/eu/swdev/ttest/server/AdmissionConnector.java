@@ -0,0 +1,223 @@
+package eu.swdev.ttest.server;
+
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Response;
+import org.eclipse.californium.core.network.MessageIdProvider;
+import org.eclipse.californium.core.network.serialization.DataParser;
+import org.eclipse.californium.core.network.serialization.DataSerializer;
+import org.eclipse.californium.core.network.serialization.MessageHeader;
+import org.eclipse.californium.core.network.serialization.TcpDataParser;
+import org.eclipse.californium.core.network.serialization.TcpDataSerializer;
+import org.eclipse.californium.core.network.serialization.UdpDataParser;
+import org.eclipse.californium.core.network.serialization.UdpDataSerializer;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.EndpointContextMatcher;
+import org.eclipse.californium.elements.RawData;
+import org.eclipse.californium.elements.RawDataChannel;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Connector that applies the admission control to the received requests before they are passed to the endpoint.
+ * <p>
+ * Only the header of a received message is parsed. A request that is not admitted is answered right away on the
+ * receiving thread with 5.03 and Max-Age and never enters the endpoint, i.e. it neither occupies a slot in the
+ * protocol-stage queue nor an exchange in the deduplicator. The endpoint must run on the executor returned by
+ * {@link #getExecutor}, which counts its queued tasks; this is the queue the "admission.queue" bound applies to. It
+ * must also use the MID provider passed in, so that the MIDs of rejections and regular NON responses do not collide.
+ */
+public class AdmissionConnector implements Connector {
+
+  private final Connector delegate;
+  private final AdmissionControl admissionControl;
+  private final QueueingExecutor executor;
+  private final DataParser parser;
+  private final DataSerializer serializer;
+  private final MessageIdProvider messageIds;
+
+  /**
+   * Creates a connector whose endpoint runs on the given executor and uses the given MID provider.
+   */
+  public AdmissionConnector(Connector delegate, AdmissionControl admissionControl, ScheduledExecutorService executor,
+      MessageIdProvider messageIds) {
+    this.delegate = delegate;
+    this.admissionControl = admissionControl;
+    this.messageIds = messageIds;
+    this.executor = new QueueingExecutor(executor);
+    if (CoAP.isTcpProtocol(delegate.getProtocol())) {
+      parser = new TcpDataParser();
+      serializer = new TcpDataSerializer();
+    } else {
+      parser = new UdpDataParser();
+      serializer = new UdpDataSerializer();
+    }
+  }
+
+  /**
+   * Returns the executor of the endpoint's protocol stage.
+   */
+  public ScheduledExecutorService getExecutor() {
+    return executor;
+  }
+
+  @Override
+  public void setRawDataReceiver(RawDataChannel messageHandler) {
+    delegate.setRawDataReceiver(raw -> {
+      if (admit(raw)) {
+        messageHandler.receiveData(raw);
+      }
+    });
+  }
+
+  private boolean admit(RawData raw) {
+    MessageHeader header;
+    try {
+      header = parser.parseHeader(raw);
+    } catch (RuntimeException e) {
+      // malformed, left to the endpoint
+      return true;
+    }
+    if (!CoAP.isRequest(header.getCode())) {
+      return true;
+    }
+    InetAddress peer = raw.getAddress();
+    if (admissionControl.admit(peer, executor.queued.get())) {
+      return true;
+    }
+    Response response = new Response(CoAP.ResponseCode.SERVICE_UNAVAILABLE);
+    if (header.getType() == CoAP.Type.CON) {
+      response.setType(CoAP.Type.ACK);
+      response.setMID(header.getMID());
+    } else {
+      // a NON response needs a MID of its own, which must not collide with the endpoint's responses
+      int mid = messageIds.getNextMessageId(raw.getInetSocketAddress());
+      if (mid < 0) {
+        return false;
+      }
+      response.setType(CoAP.Type.NON);
+      response.setMID(mid);
+    }
+    response.setToken(header.getToken());
+    response.getOptions().setMaxAge(admissionControl.retryAfter(peer));
+    response.setDestinationContext(raw.getEndpointContext());
+    delegate.send(serializer.serializeResponse(response));
+    return false;
+  }
+
+  @Override
+  public void start() throws IOException {
+    delegate.start();
+  }
+
+  @Override
+  public void stop() {
+    delegate.stop();
+  }
+
+  @Override
+  public void destroy() {
+    delegate.destroy();
+  }
+
+  @Override
+  public void send(RawData msg) {
+    delegate.send(msg);
+  }
+
+  @Override
+  public void setEndpointContextMatcher(EndpointContextMatcher matcher) {
+    delegate.setEndpointContextMatcher(matcher);
+  }
+
+  @Override
+  public InetSocketAddress getAddress() {
+    return delegate.getAddress();
+  }
+
+  @Override
+  public String getProtocol() {
+    return delegate.getProtocol();
+  }
+
+  /**
+   * Executor that counts the tasks passed to {@link #execute} until they start; timers are not counted.
+   */
+  private static class QueueingExecutor extends AbstractExecutorService implements ScheduledExecutorService {
+
+    private final ScheduledExecutorService delegate;
+    private final AtomicInteger queued = new AtomicInteger();
+
+    QueueingExecutor(ScheduledExecutorService delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+      queued.incrementAndGet();
+      try {
+        delegate.execute(() -> {
+          queued.decrementAndGet();
+          command.run();
+        });
+      } catch (RejectedExecutionException e) {
+        queued.decrementAndGet();
+        throw e;
+      }
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+      return delegate.schedule(command, delay, unit);
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+      return delegate.schedule(callable, delay, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay, long period, TimeUnit unit) {
+      return delegate.scheduleAtFixedRate(command, initialDelay, period, unit);
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay, long delay, TimeUnit unit) {
+      return delegate.scheduleWithFixedDelay(command, initialDelay, delay, unit);
+    }
+
+    @Override
+    public void shutdown() {
+      delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+      return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+      return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+      return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+      return delegate.awaitTermination(timeout, unit);
+    }
+  }
+}
@@ -0,0 +1,119 @@
+package eu.swdev.ttest.server;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Admission control on the receive path of the server's endpoints (see {@link AdmissionConnector}).
+ * <p>
+ * A request is admitted if the global rate ("admission.rate" requests/s), the rate of its peer
+ * ("admission.peerRate" requests/s), and the number of tasks of its endpoint that are queued for the protocol stage
+ * ("admission.queue") allow it. A rate or bound of 0 (the default) is unlimited. Rejected requests should be answered
+ * fast, with the number of seconds returned by {@link #retryAfter} as Max-Age.
+ */
+public class AdmissionControl {
+
+  static final double rate = Double.parseDouble(System.getProperty("admission.rate", "0"));
+  static final double peerRate = Double.parseDouble(System.getProperty("admission.peerRate", "0"));
+  static final int queue = Integer.getInteger("admission.queue", 0);
+
+  private static final int MAX_PEERS = 100000;
+
+  /**
+   * Token bucket that allows a burst of one second.
+   */
+  static class TokenBucket {
+    private final double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+
+    TokenBucket(double rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    synchronized boolean tryAcquire() {
+      refill();
+      if (tokens >= 1) {
+        tokens -= 1;
+        return true;
+      }
+      return false;
+    }
+
+    synchronized double secondsUntilAvailable() {
+      refill();
+      return tokens >= 1 ? 0 : (1 - tokens) / rate;
+    }
+
+    private void refill() {
+      long now = System.nanoTime();
+      tokens = Math.min(rate, tokens + (now - lastRefill) * rate / 1e9);
+      lastRefill = now;
+    }
+  }
+
+  private final TokenBucket global = rate > 0 ? new TokenBucket(rate) : null;
+
+  /**
+   * Buckets of the most recently seen peers; the least recently seen peer is forgotten in O(1) once there are more
+   * than MAX_PEERS, so it starts again with a full bucket.
+   */
+  private final Map<InetAddress, TokenBucket> peers = Collections.synchronizedMap(
+      new LinkedHashMap<InetAddress, TokenBucket>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, TokenBucket> eldest) {
+          return size() > MAX_PEERS;
+        }
+      });
+
+  private final AtomicInteger rejected = new AtomicInteger();
+
+  public boolean isEnabled() {
+    return global != null || peerRate > 0 || queue > 0;
+  }
+
+  /**
+   * Returns true if a request of the peer may be passed to an endpoint that has the given number of tasks queued.
+   */
+  public boolean admit(InetAddress peer, int queued) {
+    if ((queue > 0 && queued >= queue) || (global != null && !global.tryAcquire())
+        || (peerRate > 0 && !getPeerBucket(peer).tryAcquire())) {
+      rejected.incrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  /**
+   * Seconds after which a rejected peer should retry (at least one).
+   */
+  public int retryAfter(InetAddress peer) {
+    double seconds = 0;
+    if (global != null) {
+      seconds = global.secondsUntilAvailable();
+    }
+    if (peerRate > 0) {
+      seconds = Math.max(seconds, getPeerBucket(peer).secondsUntilAvailable());
+    }
+    return Math.max(1, (int) Math.ceil(seconds));
+  }
+
+  public int getRejected() {
+    return rejected.get();
+  }
+
+  private TokenBucket getPeerBucket(InetAddress peer) {
+    synchronized (peers) {
+      TokenBucket bucket = peers.get(peer);
+      if (bucket == null) {
+        bucket = new TokenBucket(peerRate);
+        peers.put(peer, bucket);
+      }
+      return bucket;
+    }
+  }
+}
@@ -0,0 +1,102 @@
+package eu.swdev.ttest.server;
+
+import eu.swdev.ttest.MonitoredDeduplicatorFactory;
+import eu.swdev.ttest.TimeBucketDeduplicator;
+import eu.swdev.ttest.Util;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.Exchange;
+import org.eclipse.californium.core.network.Exchange.KeyMID;
+import org.eclipse.californium.core.network.config.NetworkConfig;
+import org.eclipse.californium.core.network.deduplication.Deduplicator;
+import org.eclipse.californium.core.network.deduplication.DeduplicatorFactory;
+import org.eclipse.californium.elements.AddressEndpointContext;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Compares the deduplicators under a constant message rate.
+ * <p>
+ * Usage: DeduplicatorBenchmark [&lt;msgs/s&gt; [&lt;seconds&gt;]] (default: 50000 msgs/s for 60 s)
+ * <p>
+ * Each deduplicator gets new message IDs from 1000 peers at the given rate. The exchange lifetime is
+ * "exchangeLifetime" (default 10 s, shorter than the standard 247 s to reach the steady state quickly). Reported are
+ * the heap retained at the end and the CPU time of the deduplicator's expiry thread (sweep or rotation). The
+ * deduplicators create their expiry thread themselves, it is identified by its name ("Deduplicator").
+ */
+public class DeduplicatorBenchmark {
+
+  static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  static Set<Long> expiryThreads() {
+    Set<Long> ids = new HashSet<>();
+    for (ThreadInfo info : threads.getThreadInfo(threads.getAllThreadIds())) {
+      if (info != null && info.getThreadName().startsWith("Deduplicator")) {
+        ids.add(info.getThreadId());
+      }
+    }
+    return ids;
+  }
+
+  static void measure(String name, Deduplicator deduplicator, int rate, int seconds) throws Exception {
+    Set<Long> otherThreads = expiryThreads();
+    deduplicator.start();
+    InetSocketAddress[] peers = new InetSocketAddress[1000];
+    for (int i = 0; i < peers.length; i++) {
+      peers[i] = new InetSocketAddress(InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i}), 5683);
+    }
+
+    long memoryBefore = ResourceTreeBenchmark.usedMemory();
+    long start = System.nanoTime();
+    long total = (long) rate * seconds;
+    for (long i = 0; i < total; i++) {
+      if (i % 1000 == 0) {
+        long wait = start + (long) (i * 1e9 / rate) - System.nanoTime();
+        if (wait > 0) {
+          Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+        }
+      }
+      Request request = Request.newPost();
+      request.setMID((int) ((i / peers.length) & 0xffff));
+      request.setSourceContext(new AddressEndpointContext(peers[(int) (i % peers.length)]));
+      // a new exchange per message: mark-and-sweep expires by the exchange's creation time
+      deduplicator.findPrevious(KeyMID.fromInboundMessage(request), new Exchange(request, Exchange.Origin.REMOTE));
+    }
+    long memory = ResourceTreeBenchmark.usedMemory() - memoryBefore;
+    long expiryNanos = 0;
+    for (long id : expiryThreads()) {
+      if (!otherThreads.contains(id)) {
+        expiryNanos += Math.max(0, threads.getThreadCpuTime(id));
+      }
+    }
+    String size = deduplicator instanceof TimeBucketDeduplicator
+        ? String.valueOf(((TimeBucketDeduplicator) deduplicator).size())
+        : "n/a";
+    deduplicator.stop();
+
+    System.out.println(name + " - final size: " + size +
+        "; heap (MB): " + memory / 1024 / 1024 +
+        "; expiry cpu (ms): " + expiryNanos / 1000000);
+  }
+
+  public static void main(String[] args) throws Exception {
+    int rate = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+    int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 60;
+    NetworkConfig config = Util.withExchangeTuning(NetworkConfig.createStandardWithoutFile());
+    config.setLong(NetworkConfig.Keys.EXCHANGE_LIFETIME, Long.getLong("exchangeLifetime", 10000));
+    config.setLong(NetworkConfig.Keys.MARK_AND_SWEEP_INTERVAL, Long.getLong("markAndSweepInterval", 1000));
+    config.setLong(NetworkConfig.Keys.CROP_ROTATION_PERIOD, Long.getLong("cropRotationPeriod", 10000));
+
+    DeduplicatorFactory standard = new DeduplicatorFactory();
+    for (String type : new String[]{"DEDUPLICATOR_MARK_AND_SWEEP", "DEDUPLICATOR_CROP_ROTATION"}) {
+      config.setString(NetworkConfig.Keys.DEDUPLICATOR, type);
+      measure(type, standard.createDeduplicator(config), rate, seconds);
+    }
+    measure(MonitoredDeduplicatorFactory.TIME_BUCKETS, new TimeBucketDeduplicator(config), rate, seconds);
+  }
+}
@@ -0,0 +1,236 @@
+package eu.swdev.ttest.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Append-only log of the requests a resource accepted, i.e. of (experiment, request) pairs.
+ * <p>
+ * {@link #append} only enqueues the record. A writer thread writes the queued records in batches and forces each batch
+ * to disk (group commit every "persist.commitMillis" ms, default 10). Records that were not yet committed are lost on
+ * a crash.
+ * <p>
+ * When the log exceeds "persist.compactBytes" (default 64 MB), the writer thread compacts it: the current log is set
+ * aside, a snapshot of all pairs is written atomically, and the old log is deleted. Files of a log named "n":
+ * <ul>
+ * <li>n.snapshot - compacted state</li>
+ * <li>n.log.old - log set aside during compaction (only present after a crash during compaction; merged into the
+ * snapshot on the next start)</li>
+ * <li>n.log - records after the last compaction</li>
+ * </ul>
+ * All files consist of 8 byte records: experiment and request as big endian ints. A truncated last record is ignored.
+ */
+public class RequestLog {
+
+  public interface Consumer {
+    void accept(int experiment, int request);
+  }
+
+  static final long commitMillis = Long.getLong("persist.commitMillis", 10);
+  static final long compactBytes = Long.getLong("persist.compactBytes", 64 * 1024 * 1024);
+
+  private static final int RECORD_SIZE = 8;
+
+  private final File snapshotFile;
+  private final File oldLogFile;
+  private final File logFile;
+  private final Supplier<long[]> snapshotSupplier;
+  private final BlockingQueue<Long> queue = new LinkedBlockingQueue<>();
+  private final Thread writer;
+  private FileChannel channel;
+  private volatile boolean closed = false;
+
+  /**
+   * @param snapshotSupplier supplies all pairs of the current state (see {@link #record}) for compaction
+   */
+  public RequestLog(File dir, String name, Supplier<long[]> snapshotSupplier) {
+    dir.mkdirs();
+    this.snapshotFile = new File(dir, name + ".snapshot");
+    this.oldLogFile = new File(dir, name + ".log.old");
+    this.logFile = new File(dir, name + ".log");
+    this.snapshotSupplier = snapshotSupplier;
+    this.writer = new Thread(this::write, "request-log-" + name);
+    this.writer.setDaemon(true);
+  }
+
+  static long record(int experiment, int request) {
+    return ((long) experiment << 32) | (request & 0xffffffffL);
+  }
+
+  /**
+   * Replays all persisted records and starts the writer thread afterwards.
+   */
+  public void replay(Consumer consumer) throws IOException {
+    long start = System.nanoTime();
+    int records = 0;
+    for (File file : new File[]{snapshotFile, oldLogFile, logFile}) {
+      if (file.exists()) {
+        records += replay(file, consumer);
+      }
+    }
+    System.out.println("replayed " + records + " records of " + logFile + " in " + (System.nanoTime() - start) / 1000000 + "ms");
+    if (oldLogFile.exists()) {
+      // a compaction was interrupted; merge the old log into the snapshot, the next compaction needs its name
+      writeSnapshot(snapshotSupplier.get());
+      Files.delete(oldLogFile.toPath());
+      System.out.println("merged " + oldLogFile + " into " + snapshotFile);
+    }
+    channel = openLog();
+    writer.start();
+  }
+
+  private int replay(File file, Consumer consumer) throws IOException {
+    int records = 0;
+    try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      ByteBuffer bb = ByteBuffer.allocate(RECORD_SIZE * 8192);
+      while (in.read(bb) > 0 || bb.position() > 0) {
+        bb.flip();
+        if (bb.remaining() < RECORD_SIZE) break;
+        while (bb.remaining() >= RECORD_SIZE) {
+          consumer.accept(bb.getInt(), bb.getInt());
+          records++;
+        }
+        bb.compact();
+      }
+    }
+    return records;
+  }
+
+  public void append(int experiment, int request) {
+    queue.add(record(experiment, request));
+  }
+
+  private void write() {
+    List<Long> batch = new ArrayList<>();
+    ByteBuffer bb = ByteBuffer.allocate(RECORD_SIZE * 8192);
+    while (!closed || !queue.isEmpty()) {
+      try {
+        Long first = queue.poll(commitMillis, TimeUnit.MILLISECONDS);
+        if (first == null) continue;
+        batch.add(first);
+        queue.drainTo(batch);
+        writeBatch(batch, bb);
+        batch.clear();
+        if (channel.size() > compactBytes) {
+          try {
+            compact();
+          } catch (IOException e) {
+            // the records are still in the old log (replayed on start) or the current log
+            System.out.println("compacting request log " + logFile + " failed: " + e);
+            if (!channel.isOpen()) {
+              channel = openLog();
+            }
+          }
+        }
+        // group further records for the next commit
+        Thread.sleep(commitMillis);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      } catch (IOException e) {
+        System.out.println("request log " + logFile + " failed: " + e);
+      }
+    }
+  }
+
+  /**
+   * Writes and commits the batch. On failure the log is truncated to the last committed record so that a partially
+   * written record does not misalign the following ones; the records of the batch are lost.
+   */
+  private void writeBatch(List<Long> batch, ByteBuffer bb) throws IOException {
+    long committed = channel.position();
+    try {
+      for (long r : batch) {
+        if (bb.remaining() < RECORD_SIZE) {
+          flush(bb);
+        }
+        bb.putLong(r);
+      }
+      flush(bb);
+      channel.force(false);
+    } catch (IOException e) {
+      bb.clear();
+      System.out.println("request log " + logFile + " lost " + batch.size() + " records: " + e);
+      channel.truncate(committed);
+      channel.position(committed);
+    }
+  }
+
+  private FileChannel openLog() throws IOException {
+    FileChannel log = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    // drop a truncated last record
+    log.truncate(log.size() / RECORD_SIZE * RECORD_SIZE);
+    log.position(log.size());
+    return log;
+  }
+
+  private void flush(ByteBuffer bb) throws IOException {
+    bb.flip();
+    while (bb.hasRemaining()) {
+      channel.write(bb);
+    }
+    bb.clear();
+  }
+
+  private void compact() throws IOException {
+    long start = System.nanoTime();
+    channel.close();
+    // never replaces an old log, its records may not be in the snapshot yet
+    Files.move(logFile.toPath(), oldLogFile.toPath());
+    channel = openLog();
+
+    // the snapshot includes all records of the old log; records appended meanwhile go to the new log
+    long[] records = snapshotSupplier.get();
+    writeSnapshot(records);
+    Files.delete(oldLogFile.toPath());
+    System.out.println("compacted " + logFile + " to " + records.length + " records in " + (System.nanoTime() - start) / 1000000 + "ms");
+  }
+
+  /**
+   * Replaces the snapshot atomically.
+   */
+  private void writeSnapshot(long[] records) throws IOException {
+    File tmp = new File(snapshotFile.getPath() + ".tmp");
+    try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      ByteBuffer bb = ByteBuffer.allocate(RECORD_SIZE * 8192);
+      for (long r : records) {
+        if (bb.remaining() < RECORD_SIZE) {
+          bb.flip();
+          while (bb.hasRemaining()) out.write(bb);
+          bb.clear();
+        }
+        bb.putLong(r);
+      }
+      bb.flip();
+      while (bb.hasRemaining()) out.write(bb);
+      out.force(true);
+    }
+    Files.move(tmp.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Writes the remaining records and closes the log.
+   */
+  public void close() {
+    if (!writer.isAlive()) return;
+    // the writer notices within commitMillis; it is not interrupted because that would close the channel
+    closed = true;
+    try {
+      writer.join();
+      channel.close();
+    } catch (Exception e) {
+      System.out.println("closing request log " + logFile + " failed: " + e);
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package eu.swdev.ttest.server;
+
+import org.eclipse.californium.core.network.Endpoint;
+import org.eclipse.californium.core.server.resources.Resource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures how the resource tree scales with the number of virtual devices (/dev/{id}/{transport}).
+ * <p>
+ * Usage: ResourceTreeBenchmark [&lt;devices&gt;...] (default: 1000 10000 100000 200000)
+ * <p>
+ * For each number of devices a new server (without endpoints) is created and the following is reported: the creation
+ * throughput, the heap used per resource, and the time to resolve a random device URI path the way Californium's
+ * message deliverer does (walking the children from the root).
+ */
+public class ResourceTreeBenchmark {
+
+  static final int lookups = Integer.getInteger("benchmark.lookups", 1000000);
+
+  static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  static Resource resolve(Resource root, List<String> path) {
+    Resource current = root;
+    for (int i = 0; i < path.size() && current != null; i++) {
+      current = current.getChild(path.get(i));
+    }
+    return current;
+  }
+
+  static void measure(int devices) {
+    Server server = new Server(new Endpoint[0]);
+    Server.DevicesResource dev = (Server.DevicesResource) server.getRoot().getChild("dev");
+
+    long memoryBefore = usedMemory();
+    long start = System.nanoTime();
+    dev.createDevices(0, devices);
+    long creation = System.nanoTime() - start;
+    long memory = usedMemory() - memoryBefore;
+    int resources = devices * (Server.TRANSPORTS.length + 1);
+
+    Random random = new Random(devices);
+    @SuppressWarnings("unchecked")
+    List<String>[] paths = new List[1024];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = Arrays.asList("dev", String.valueOf(random.nextInt(devices)), Server.TRANSPORTS[random.nextInt(Server.TRANSPORTS.length)]);
+    }
+    // warm up the lookup
+    for (int i = 0; i < lookups; i++) {
+      resolve(server.getRoot(), paths[i & 1023]);
+    }
+    int found = 0;
+    start = System.nanoTime();
+    for (int i = 0; i < lookups; i++) {
+      if (resolve(server.getRoot(), paths[i & 1023]) != null) found++;
+    }
+    long lookup = System.nanoTime() - start;
+
+    System.out.println("devices: " + devices + "; resources: " + resources +
+        " - creation (resources/s): " + String.format("%.0f", resources / (creation / 1e9)) +
+        "; memory per resource (bytes): " + memory / resources +
+        "; lookup (ns): " + String.format("%.1f", (double) lookup / lookups) +
+        (found == lookups ? "" : "; NOT FOUND: " + (lookups - found)));
+    server.destroy();
+  }
+
+  public static void main(String[] args) {
+    int[] devices = args.length > 0 ? Arrays.stream(args).mapToInt(Integer::parseInt).toArray() : new int[]{1000, 10000, 100000, 200000};
+    for (int n : devices) {
+      measure(n);
+    }
+  }
+}
@@ -1,20 +1,42 @@
 package eu.swdev.ttest.server;
 
 import eu.swdev.ttest.DtlsSecurity;
+import eu.swdev.ttest.MonitoredDeduplicatorFactory;
 import eu.swdev.ttest.Util;
 import org.apache.commons.lang3.RandomStringUtils;
 import org.eclipse.californium.core.CoapResource;
 import org.eclipse.californium.core.CoapServer;
 import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.MediaTypeRegistry;
 import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.core.network.Endpoint;
 import org.eclipse.californium.core.network.EndpointManager;
+import org.eclipse.californium.core.network.InMemoryMessageExchangeStore;
+import org.eclipse.californium.core.network.InMemoryMessageIdProvider;
+import org.eclipse.californium.core.network.MessageIdProvider;
 import org.eclipse.californium.core.network.config.NetworkConfig;
 import org.eclipse.californium.core.server.resources.CoapExchange;
 import org.eclipse.californium.core.server.resources.Resource;
+import org.eclipse.californium.elements.Connector;
 import org.eclipse.californium.elements.tcp.TcpServerConnector;
+import org.eclipse.californium.elements.util.NamedThreadFactory;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static eu.swdev.ttest.Util.networkConfig;
 
@@ -29,15 +51,77 @@ public class Server extends CoapServer {
 
   private static final int COAP_PORT = networkConfig.getInt(NetworkConfig.Keys.COAP_PORT);
 
+  /**
+   * Number of virtual devices that are created on startup (system property "devices").
+   */
+  private static final int DEVICES = Integer.getInteger("devices", 0);
+
+  static final String[] TRANSPORTS = {"udp", "dtls+psk", "dtls+rpk", "dtls+x509", "tcp", "tls"};
+
+  /**
+   * Directory of the request logs (system property "persist.dir"); if not set, requests are not persisted.
+   */
+  private static final String PERSIST_DIR = System.getProperty("persist.dir");
+
+  /**
+   * Interval (in seconds) of reporting the deduplicator sizes (system property "storeStats"); 0 for no reports.
+   */
+  private static final int STORE_STATS = Integer.getInteger("storeStats", 0);
+
+  private static final boolean parallelStartup = System.getProperty("sequentialStartup") == null;
+  private static final boolean deferredBinding = System.getProperty("deferredBinding") != null;
+
   private static String longPayload = RandomStringUtils.randomAlphabetic(100000);
 
+  /**
+   * Factory of the deduplicators of this server's endpoints; null if the endpoints are passed in.
+   */
+  private MonitoredDeduplicatorFactory deduplicators;
+
   //
   //
   //
 
   public Server() throws Exception {
     addResources();
+    addAdmissionControl();
+    // monitor (and select) the deduplicators of the server endpoints only, client endpoints in the same JVM keep
+    // the default factory
+    deduplicators = new MonitoredDeduplicatorFactory();
     addEndpoints();
+    reportStoreStats();
+  }
+
+  private ScheduledExecutorService storeStats;
+
+  private void reportStoreStats() {
+    if (STORE_STATS > 0) {
+      storeStats = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "store-stats");
+        t.setDaemon(true);
+        return t;
+      });
+      storeStats.scheduleAtFixedRate(() -> System.out.print(getDeduplicatorInfo()), STORE_STATS, STORE_STATS,
+          TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Returns the size of each deduplicator and the number of exchanges it got since the last call.
+   */
+  public String getDeduplicatorInfo() {
+    return deduplicators != null ? deduplicators.report() : "";
+  }
+
+  /**
+   * Creates a server that only uses the given endpoints instead of listening on all network interfaces.
+   */
+  public Server(Endpoint... endpoints) {
+    addResources();
+    addAdmissionControl();
+    for (Endpoint endpoint : endpoints) {
+      addEndpoint(endpoint);
+    }
   }
 
   private void addResources() {
@@ -53,31 +137,167 @@ public class Server extends CoapServer {
     add(new LongPayloadResource("dtls+x509longPayload"));
     add(new LongPayloadResource("tcplongPayload"));
     add(new LongPayloadResource("tlslongPayload"));
+    DevicesResource devices = new DevicesResource();
+    add(devices);
+    devices.createDevices(0, DEVICES);
   }
 
   /**
    * Add individual endpoints listening on default CoAP port on all IPv4 addresses of all network interfaces.
+   * <p>
+   * The endpoints are constructed in parallel unless the system property "sequentialStartup" is set. An endpoint that
+   * can not be created is only logged; the construction fails only if no endpoint could be created.
    */
   private void addEndpoints() throws Exception {
+    List<Callable<Endpoint>> tasks = new ArrayList<>();
     for (InetAddress addr : EndpointManager.getEndpointManager().getNetworkInterfaces()) {
       // only binds to IPv4 addresses and localhost
       if (addr instanceof Inet4Address || addr.isLoopbackAddress()) {
         InetSocketAddress udpBindAddress = new InetSocketAddress(addr, COAP_PORT);
-        addEndpoint(new CoapEndpoint(udpBindAddress));
+        tasks.add(timed("create udp endpoint " + udpBindAddress,
+            () -> createEndpoint(CoapEndpoint.createUDPConnector(udpBindAddress, networkConfig))));
         if (!(addr instanceof Inet6Address)) {
           InetSocketAddress tcpBindAddress = new InetSocketAddress(addr, 5685);
-          addEndpoint(new CoapEndpoint(new TcpServerConnector(tcpBindAddress, 2, 10000), networkConfig));
+          tasks.add(timed("create tcp endpoint " + tcpBindAddress,
+              () -> createEndpoint(new TcpServerConnector(tcpBindAddress, 2, 10000))));
         }
       }
       InetSocketAddress dtlsBindAddress = new InetSocketAddress(addr, 5684);
-      addEndpoint(new CoapEndpoint(Util.createDtlsServerConnector(dtlsBindAddress), networkConfig));
+      tasks.add(timed("create dtls endpoint " + dtlsBindAddress,
+          () -> createEndpoint(Util.createDtlsServerConnector(dtlsBindAddress))));
+
+    }
+    tasks.add(timed("create tls endpoint *:5686",
+        () -> createEndpoint(Util.createTlsServerConnector(5686))));
+    int created = 0;
+    for (Endpoint endpoint : invokeAll(tasks)) {
+      if (endpoint != null) {
+        addEndpoint(endpoint);
+        created++;
+      }
+    }
+    if (created == 0) {
+      throw new IllegalStateException("none of the server endpoints could be created");
+    }
+  }
+
+  /**
+   * Binds all endpoints (in parallel unless the system property "sequentialStartup" is set).
+   * <p>
+   * If the system property "deferredBinding" is set, binding is done in a background thread and this method returns
+   * immediately. Requests on endpoints that are not yet bound are not answered.
+   */
+  @Override
+  public void start() {
+    if (deferredBinding) {
+      Thread t = new Thread(() -> {
+        try {
+          bindEndpoints();
+        } catch (RuntimeException e) {
+          System.out.println("server not started: " + e);
+        }
+      }, "endpoint-binding");
+      t.setDaemon(true);
+      t.start();
+    } else {
+      bindEndpoints();
+    }
+  }
+
+  /**
+   * Like {@link CoapServer#start()} an endpoint that can not be bound is only logged; the server fails to start only
+   * if no endpoint could be bound.
+   */
+  private void bindEndpoints() {
+    long start = System.nanoTime();
+    List<Callable<Boolean>> tasks = new ArrayList<>();
+    for (Endpoint endpoint : getEndpoints()) {
+      tasks.add(() -> {
+        long bindStart = System.nanoTime();
+        try {
+          endpoint.start();
+          System.out.println("bind endpoint " + endpoint.getAddress() + ": " + (System.nanoTime() - bindStart) / 1000000 + "ms");
+          return true;
+        } catch (Exception e) {
+          System.out.println("bind endpoint " + endpoint.getAddress() + " failed after " + (System.nanoTime() - bindStart) / 1000000 + "ms: " + e);
+          return false;
+        }
+      });
+    }
+    int started = 0;
+    try {
+      for (boolean success : invokeAll(tasks)) {
+        if (success) started++;
+      }
+    } catch (Exception e) {
+      throw new RuntimeException(e);
+    }
+    if (started == 0) {
+      throw new IllegalStateException("none of the server endpoints could be bound");
+    }
+    // started endpoints are skipped; the failed ones are tried once more and logged
+    super.start();
+    System.out.println("server started with " + started + " of " + tasks.size() + " endpoints in " + (System.nanoTime() - start) / 1000000 + "ms");
+  }
+
+  /**
+   * Returns a task that logs the duration of the given task, or its failure; a failed task returns null.
+   */
+  private static <T> Callable<T> timed(String what, Callable<T> callable) {
+    return () -> {
+      long start = System.nanoTime();
+      try {
+        T result = callable.call();
+        System.out.println(what + ": " + (System.nanoTime() - start) / 1000000 + "ms");
+        return result;
+      } catch (Exception e) {
+        System.out.println(what + " failed after " + (System.nanoTime() - start) / 1000000 + "ms: " + e);
+        return null;
+      }
+    };
+  }
+
+  private static <T> List<T> invokeAll(List<Callable<T>> tasks) throws Exception {
+    List<T> results = new ArrayList<>();
+    if (!parallelStartup) {
+      for (Callable<T> task : tasks) {
+        results.add(task.call());
+      }
+      return results;
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, Math.min(tasks.size(), 2 * Runtime.getRuntime().availableProcessors())));
+    try {
+      for (Future<T> future : executor.invokeAll(tasks)) {
+        try {
+          results.add(future.get());
+        } catch (ExecutionException e) {
+          throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+      }
+      return results;
+    } finally {
+      executor.shutdown();
+    }
+  }
 
+  @Override
+  public void destroy() {
+    super.destroy();
+    if (storeStats != null) {
+      storeStats.shutdownNow();
+    }
+    for (Resource r: getRoot().getChildren()) {
+      if (r instanceof TestResource) {
+        ((TestResource) r).closeLog();
+      }
     }
-    addEndpoint(new CoapEndpoint(Util.createTlsServerConnector(5686), networkConfig));
   }
 
   public String getPostedInfo() {
     StringBuilder sb = new StringBuilder();
+    if (admissionControl.isEnabled()) {
+      sb.append("rejected requests: ").append(admissionControl.getRejected()).append("\n");
+    }
     for (Resource r: getRoot().getChildren()) {
       if (r instanceof TestResource) {
         sb.append(r.getName()).append("\n");
@@ -87,45 +307,218 @@ public class Server extends CoapServer {
     return sb.toString();
   }
 
+  private final AdmissionControl admissionControl = new AdmissionControl();
+
+  /**
+   * Executor of the protocol stage of all endpoints if the admission control is enabled, otherwise null.
+   */
+  private ScheduledExecutorService protocolStage;
+
+  /**
+   * Creates the protocol-stage executor (like {@link CoapServer} does) if any limit is configured, so that the
+   * connectors of the endpoints created by {@link #addEndpoints} can count the tasks queued for it. Endpoints passed
+   * to {@link #Server(Endpoint...)} are not subject to the admission control.
+   */
+  private void addAdmissionControl() {
+    if (admissionControl.isEnabled()) {
+      // the default executor has not started any thread yet
+      protocolStage = Executors.newScheduledThreadPool(networkConfig.getInt(NetworkConfig.Keys.PROTOCOL_STAGE_THREAD_COUNT),
+          new NamedThreadFactory("CoapServer#"));
+      setExecutor(protocolStage);
+    }
+  }
+
+  /**
+   * Creates an endpoint with a monitored deduplicator, and with the admission control on the receive path of its
+   * connector if any limit is configured.
+   */
+  private Endpoint createEndpoint(Connector connector) {
+    InMemoryMessageExchangeStore store = new InMemoryMessageExchangeStore(networkConfig);
+    // otherwise the store takes its deduplicator from the global factory when it is started
+    store.setDeduplicator(deduplicators.createDeduplicator(networkConfig));
+    if (protocolStage != null) {
+      // the 5.03 responses to NON requests take their MID from the endpoint's provider
+      MessageIdProvider messageIds = new InMemoryMessageIdProvider(networkConfig);
+      store.setMessageIdProvider(messageIds);
+      connector = new AdmissionConnector(connector, admissionControl, protocolStage, messageIds);
+    }
+    return new CoapEndpoint(connector, networkConfig, null, store);
+  }
+
+  /**
+   * Runs endpoints with admission control on the executor of their connector, which counts the queued tasks.
+   */
+  @Override
+  public void addEndpoint(Endpoint endpoint) {
+    super.addEndpoint(endpoint);
+    if (endpoint instanceof CoapEndpoint && ((CoapEndpoint) endpoint).getConnector() instanceof AdmissionConnector) {
+      endpoint.setExecutor(((AdmissionConnector) ((CoapEndpoint) endpoint).getConnector()).getExecutor());
+    }
+  }
+
+  public AdmissionControl getAdmissionControl() {
+    return admissionControl;
+  }
+
   public class TestResource extends CoapResource {
 
     public TestResource(String name) {
       super(name);
+      if (PERSIST_DIR != null) {
+        log = new RequestLog(new File(PERSIST_DIR), name, this::getRecords);
+        try {
+          log.replay(this::add);
+        } catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      } else {
+        log = null;
+      }
+    }
+
+    /**
+     * Requests per experiment; concurrent sets so that POSTs of different experiments and snapshots do not block each
+     * other.
+     */
+    private final Map<Integer, Set<Integer>> sets = new ConcurrentHashMap<>();
+
+    private final RequestLog log;
+
+    /**
+     * Number of distinct requests per experiment; maintained on every POST so that queries need not lock or scan the
+     * sets.
+     */
+    private final ConcurrentNavigableMap<Integer, AtomicInteger> counts = new ConcurrentSkipListMap<>();
+
+    /**
+     * Returns true if the request was not yet known.
+     */
+    private boolean add(int experiment, int request) {
+      boolean added = sets.computeIfAbsent(experiment, k -> ConcurrentHashMap.newKeySet()).add(request);
+      if (added) {
+        counts.computeIfAbsent(experiment, k -> new AtomicInteger()).incrementAndGet();
+      }
+      return added;
     }
 
-    private Map<Integer, Set<Integer>> sets = new HashMap<>();
+    /**
+     * Returns all pairs without blocking concurrent POSTs; pairs added meanwhile may be missing, they are written to
+     * the log after the snapshot.
+     */
+    private long[] getRecords() {
+      long[] records = new long[1024];
+      int i = 0;
+      for (Map.Entry<Integer, Set<Integer>> me : sets.entrySet()) {
+        for (Integer request : me.getValue()) {
+          if (i == records.length) {
+            records = Arrays.copyOf(records, 2 * records.length);
+          }
+          records[i++] = RequestLog.record(me.getKey(), request);
+        }
+      }
+      return Arrays.copyOf(records, i);
+    }
+
+    public void closeLog() {
+      if (log != null) {
+        log.close();
+      }
+    }
 
     private String getInfo() {
+      return getInfo(counts);
+    }
+
+    private String getInfo(Map<Integer, AtomicInteger> selected) {
       StringBuilder sb = new StringBuilder();
-      synchronized (sets) {
-        for (Map.Entry<Integer, Set<Integer>> me: sets.entrySet()) {
-          sb.append(me.getKey()).append(':').append(me.getValue().size()).append('\n');
-        }
+      for (Map.Entry<Integer, AtomicInteger> me: selected.entrySet()) {
+        sb.append(me.getKey()).append(':').append(me.getValue().get()).append('\n');
       }
       return sb.toString();
     }
+
+    private byte[] getBinaryInfo(Map<Integer, AtomicInteger> selected) {
+      // pairs of big endian ints: experiment, count
+      ByteBuffer bb = ByteBuffer.allocate(selected.size() * 8);
+      for (Map.Entry<Integer, AtomicInteger> me: selected.entrySet()) {
+        if (bb.remaining() < 8) break;
+        bb.putInt(me.getKey()).putInt(me.getValue().get());
+      }
+      return Arrays.copyOf(bb.array(), bb.position());
+    }
+
+    /**
+     * Selects the counters addressed by the query parameters "exp=N", "from=N" / "to=N" (inclusive range), or
+     * "since=N" (all experiments >= N). Without parameters all counters are selected.
+     *
+     * @throws IllegalArgumentException if a value is not a number or "from" is greater than "to"
+     */
+    private Map<Integer, AtomicInteger> select(List<String> query) {
+      Integer exp = null, from = null, to = null;
+      for (String q: query) {
+        int idx = q.indexOf('=');
+        if (idx < 0) continue;
+        String key = q.substring(0, idx);
+        int value = Integer.parseInt(q.substring(idx + 1));
+        switch (key) {
+          case "exp":
+            exp = value;
+            break;
+          case "from":
+          case "since":
+            from = value;
+            break;
+          case "to":
+            to = value;
+            break;
+          default:
+        }
+      }
+      if (exp != null) {
+        AtomicInteger count = counts.get(exp);
+        return Collections.singletonMap(exp, count != null ? count : new AtomicInteger());
+      } else if (from != null && to != null) {
+        if (from > to) {
+          throw new IllegalArgumentException("from " + from + " > to " + to);
+        }
+        return counts.subMap(from, true, to, true);
+      } else if (from != null) {
+        return counts.tailMap(from, true);
+      } else if (to != null) {
+        return counts.headMap(to, true);
+      } else {
+        return counts;
+      }
+    }
+
     @Override
     public void handleGET(CoapExchange exchange) {
-      exchange.respond(getInfo());
+      Map<Integer, AtomicInteger> selected;
+      try {
+        selected = select(exchange.getRequestOptions().getUriQuery());
+      } catch (IllegalArgumentException e) {
+        exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "invalid query: " + e.getMessage());
+        return;
+      }
+      if (exchange.getRequestOptions().getAccept() == MediaTypeRegistry.APPLICATION_OCTET_STREAM) {
+        exchange.respond(CoAP.ResponseCode.CONTENT, getBinaryInfo(selected), MediaTypeRegistry.APPLICATION_OCTET_STREAM);
+      } else {
+        exchange.respond(getInfo(selected));
+      }
     }
 
     @Override
     public void handlePOST(CoapExchange exchange) {
       String text = exchange.getRequestText();
-      synchronized (sets) {
-        int idx = text.indexOf(':');
-        int experiment = Integer.parseInt(text.substring(0, idx));
-        int idx2 = idx + 1;
-        while (idx2 < text.length() && (Character.isDigit(text.charAt(idx2)) || text.charAt(idx2) == '-')) idx2++;
-        int request = Integer.parseInt(text.substring(idx + 1, idx2));
-        if (request >= 0) {
-          // it is not a warm up request
-          Set<Integer> set = sets.get(experiment);
-          if (set == null) {
-            set = new HashSet<>();
-            sets.put(experiment, set);
-          }
-          set.add(request);
+      int idx = text.indexOf(':');
+      int experiment = Integer.parseInt(text.substring(0, idx));
+      int idx2 = idx + 1;
+      while (idx2 < text.length() && (Character.isDigit(text.charAt(idx2)) || text.charAt(idx2) == '-')) idx2++;
+      int request = Integer.parseInt(text.substring(idx + 1, idx2));
+      if (request >= 0) {
+        // it is not a warm up request
+        if (add(experiment, request) && log != null) {
+          log.append(experiment, request);
         }
       }
       // echo the request text
@@ -134,6 +527,77 @@ public class Server extends CoapServer {
 
   }
 
+  /**
+   * Container of the virtual devices: /dev/{id}/{transport}.
+   * <p>
+   * Devices are created on startup (see system property "devices") or by posting their id to /dev.
+   */
+  public class DevicesResource extends CoapResource {
+
+    public DevicesResource() {
+      super("dev");
+    }
+
+    /**
+     * Creates the devices with the ids from (inclusive) to to (exclusive).
+     */
+    public void createDevices(int from, int to) {
+      for (int id = from; id < to; id++) {
+        createDevice(String.valueOf(id));
+      }
+    }
+
+    /**
+     * Creates the device unless it exists already; returns null in this case.
+     */
+    public synchronized Resource createDevice(String id) {
+      if (getChild(id) != null) {
+        return null;
+      }
+      CoapResource device = new CoapResource(id);
+      for (String transport : TRANSPORTS) {
+        device.add(new DeviceResource(transport));
+      }
+      add(device);
+      return device;
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+      String id = exchange.getRequestText().trim();
+      if (id.isEmpty() || id.indexOf('/') >= 0) {
+        exchange.respond(CoAP.ResponseCode.BAD_REQUEST, "invalid device id");
+      } else if (createDevice(id) != null) {
+        exchange.respond(CoAP.ResponseCode.CREATED, id);
+      } else {
+        exchange.respond(CoAP.ResponseCode.CHANGED, id);
+      }
+    }
+  }
+
+  /**
+   * Resource of a virtual device that counts the posts it received.
+   */
+  public class DeviceResource extends CoapResource {
+
+    private final AtomicInteger posts = new AtomicInteger();
+
+    public DeviceResource(String name) {
+      super(name);
+    }
+
+    @Override
+    public void handleGET(CoapExchange exchange) {
+      exchange.respond(String.valueOf(posts.get()));
+    }
+
+    @Override
+    public void handlePOST(CoapExchange exchange) {
+      posts.incrementAndGet();
+      exchange.respond(CoAP.ResponseCode.CREATED, exchange.getRequestPayload());
+    }
+  }
+
   public class LongPayloadResource extends CoapResource {
 
     public LongPayloadResource(String name) {
@@ -0,0 +1,223 @@
+package eu.swdev.ttest.web;
+
+import eu.swdev.ttest.DtlsSecurity;
+import eu.swdev.ttest.Util;
+import org.eclipse.californium.core.CoapClient;
+import org.eclipse.californium.core.CoapHandler;
+import org.eclipse.californium.core.CoapResponse;
+import org.eclipse.californium.core.coap.CoAP;
+import org.eclipse.californium.core.coap.Request;
+import org.eclipse.californium.core.network.CoapEndpoint;
+import org.eclipse.californium.elements.Connector;
+import org.eclipse.californium.elements.UDPConnector;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+import static eu.swdev.ttest.Util.networkConfig;
+
+/**
+ * HTTP-to-CoAP gateway: forwards "/gateway/&lt;transport&gt;/&lt;path&gt;" to the CoAP resource "&lt;path&gt;" of
+ * the server in this web-app via the given transport (udp, dtls+psk, dtls+rpk, dtls+x509, tcp, or tls).
+ * <p>
+ * Requests are processed asynchronously. Each transport has one endpoint and a pool of "gatewayPoolSize" (default 64)
+ * CoAP clients; if all clients are in use, the request is answered with 503. A CoAP request without response within
+ * 10 s is cancelled and answered with 504.
+ */
+public class GatewayServlet extends HttpServlet {
+
+  private static final int POOL_SIZE = Integer.getInteger("gatewayPoolSize", 64);
+  private static final long TIMEOUT = 10000;
+
+  private static class Transport {
+    final String scheme;
+    final int port;
+    final CoapEndpoint endpoint;
+    final BlockingQueue<CoapClient> pool = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    Transport(String scheme, int port, Supplier<Connector> connector) {
+      this.scheme = scheme;
+      this.port = port;
+      this.endpoint = new CoapEndpoint(connector.get(), networkConfig);
+      for (int i = 0; i < POOL_SIZE; i++) {
+        pool.add(new CoapClient().setEndpoint(endpoint));
+      }
+    }
+  }
+
+  private final Map<String, Transport> transports = new HashMap<>();
+
+  @Override
+  public void init() throws ServletException {
+    InetSocketAddress any = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    transports.put("udp", new Transport("coap", 5683, () -> new UDPConnector(any)));
+    transports.put("dtls+psk", new Transport("coaps", 5684, () -> Util.createDtlsClientConnector(any, DtlsSecurity.CLIENT_PSK)));
+    transports.put("dtls+rpk", new Transport("coaps", 5684, () -> Util.createDtlsClientConnector(any, DtlsSecurity.CLIENT_RPK)));
+    transports.put("dtls+x509", new Transport("coaps", 5684, () -> Util.createDtlsClientConnector(any, DtlsSecurity.CLIENT_X509)));
+    transports.put("tcp", new Transport("coap+tcp", 5685, Util::createTcpClientConnector));
+    transports.put("tls", new Transport("coaps+tcp", 5686, Util::createTlsClientConnector));
+  }
+
+  @Override
+  public void destroy() {
+    for (Transport transport : transports.values()) {
+      transport.endpoint.destroy();
+    }
+  }
+
+  @Override
+  protected void service(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
+    String pathInfo = req.getPathInfo();
+    int idx = pathInfo == null ? -1 : pathInfo.indexOf('/', 1);
+    Transport transport = idx < 0 ? null : transports.get(pathInfo.substring(1, idx));
+    if (transport == null) {
+      resp.sendError(HttpServletResponse.SC_NOT_FOUND, "use /gateway/<transport>/<path> with transport one of " + transports.keySet());
+      return;
+    }
+    Request request;
+    switch (req.getMethod()) {
+      case "GET":
+        request = Request.newGet();
+        break;
+      case "POST":
+        request = Request.newPost();
+        break;
+      case "PUT":
+        request = Request.newPut();
+        break;
+      case "DELETE":
+        request = Request.newDelete();
+        break;
+      default:
+        resp.sendError(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        return;
+    }
+    String query = req.getQueryString() == null ? "" : "?" + req.getQueryString();
+    request.setURI(transport.scheme + "://" + InetAddress.getLoopbackAddress().getHostAddress() + ":" + transport.port + pathInfo.substring(idx) + query);
+    byte[] body = readBody(req.getInputStream());
+    if (body.length > 0) {
+      request.setPayload(body);
+    }
+
+    CoapClient client = transport.pool.poll();
+    if (client == null) {
+      resp.setHeader("Retry-After", "1");
+      resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "gateway busy");
+      return;
+    }
+    AsyncContext async = req.startAsync();
+    // the asynchronous CoAP request has no timeout of its own -> the servlet timeout cancels it
+    async.setTimeout(TIMEOUT);
+    // completes the exchange exactly once: returns the client to the pool and completes the async context
+    AtomicBoolean done = new AtomicBoolean();
+    async.addListener(new AsyncListener() {
+      @Override
+      public void onTimeout(AsyncEvent event) {
+        if (done.compareAndSet(false, true)) {
+          request.cancel();
+          transport.pool.add(client);
+          ((HttpServletResponse) async.getResponse()).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+          async.complete();
+        }
+      }
+
+      @Override
+      public void onError(AsyncEvent event) {
+        if (done.compareAndSet(false, true)) {
+          request.cancel();
+          transport.pool.add(client);
+          async.complete();
+        }
+      }
+
+      @Override
+      public void onComplete(AsyncEvent event) {
+      }
+
+      @Override
+      public void onStartAsync(AsyncEvent event) {
+      }
+    });
+    client.advanced(new CoapHandler() {
+      @Override
+      public void onLoad(CoapResponse response) {
+        if (!done.compareAndSet(false, true)) return;
+        transport.pool.add(client);
+        try {
+          HttpServletResponse httpResponse = (HttpServletResponse) async.getResponse();
+          int status = toHttpStatus(response.getCode());
+          httpResponse.setStatus(status);
+          if (response.getCode() == CoAP.ResponseCode.SERVICE_UNAVAILABLE) {
+            httpResponse.setHeader("Retry-After", String.valueOf(response.getOptions().getMaxAge()));
+          }
+          byte[] payload = response.getPayload();
+          // a 204 must not have a body
+          if (status != HttpServletResponse.SC_NO_CONTENT && payload != null && payload.length > 0) {
+            httpResponse.setContentLength(payload.length);
+            httpResponse.getOutputStream().write(payload);
+          }
+        } catch (IOException e) {
+          log("writing gateway response failed", e);
+        } finally {
+          async.complete();
+        }
+      }
+
+      @Override
+      public void onError() {
+        if (!done.compareAndSet(false, true)) return;
+        transport.pool.add(client);
+        ((HttpServletResponse) async.getResponse()).setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+        async.complete();
+      }
+    }, request);
+  }
+
+  private static byte[] readBody(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[4096];
+    int n;
+    while ((n = in.read(buffer)) != -1) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  private static int toHttpStatus(CoAP.ResponseCode code) {
+    switch (code) {
+      case CREATED:
+        return HttpServletResponse.SC_CREATED;
+      case DELETED:
+      case CHANGED:
+        return HttpServletResponse.SC_NO_CONTENT;
+      case NOT_FOUND:
+        return HttpServletResponse.SC_NOT_FOUND;
+      case METHOD_NOT_ALLOWED:
+        return HttpServletResponse.SC_METHOD_NOT_ALLOWED;
+      case SERVICE_UNAVAILABLE:
+        return HttpServletResponse.SC_SERVICE_UNAVAILABLE;
+      case GATEWAY_TIMEOUT:
+        return HttpServletResponse.SC_GATEWAY_TIMEOUT;
+      default:
+        if (CoAP.ResponseCode.isSuccess(code)) return HttpServletResponse.SC_OK;
+        if (CoAP.ResponseCode.isClientError(code)) return HttpServletResponse.SC_BAD_REQUEST;
+        return HttpServletResponse.SC_BAD_GATEWAY;
+    }
+  }
+}
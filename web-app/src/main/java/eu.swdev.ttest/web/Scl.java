@@ -22,7 +22,7 @@ public class Scl implements ServletContextListener {
 
   public void contextDestroyed(ServletContextEvent servletContextEvent) {
     if (server != null) {
-      server.stop();
+      server.destroy();
       server = null;
     }
   }